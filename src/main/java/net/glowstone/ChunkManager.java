@@ -1,14 +1,18 @@
 package net.glowstone;
 
+import net.glowstone.generator.GlowChunkGenerator;
 import net.glowstone.io.ChunkIoService;
+import net.glowstone.io.PreparedChunk;
+import net.glowstone.io.PreparedSave;
+import net.glowstone.util.StripedLongObjectMap;
 import org.bukkit.block.Biome;
-import org.bukkit.generator.BlockPopulator;
 import org.bukkit.generator.ChunkGenerator;
 
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 /**
@@ -34,35 +38,148 @@ public final class ChunkManager {
     private final ChunkGenerator generator;
 
     /**
-     * A map of chunks currently loaded in memory.
+     * The executor used to generate new chunks in the background, or null.
      */
-    private final ConcurrentMap<GlowChunk.Key, GlowChunk> chunks = new ConcurrentHashMap<GlowChunk.Key, GlowChunk>();
+    private final Executor generationExecutor;
+
+    /**
+     * A map of chunks currently loaded in memory, keyed by their packed
+     * coordinates.
+     */
+    private final StripedLongObjectMap<GlowChunk> chunks = new StripedLongObjectMap<GlowChunk>();
+
+    /**
+     * The chunk most recently looked up by each thread. Block access tends to
+     * stay within one chunk for long stretches, so this skips the map lookup.
+     */
+    private final ThreadLocal<GlowChunk> lastChunk = new ThreadLocal<GlowChunk>();
 
     /**
      * A map of chunks which are being kept loaded by players or other factors.
+     * Each lock set is only read or changed while holding its own monitor,
+     * and is only dropped from the map while empty under that monitor, so
+     * a lock is never added to a set which is no longer in the map.
+     */
+    private final StripedLongObjectMap<Set<ChunkLock>> locks = new StripedLongObjectMap<Set<ChunkLock>>();
+
+    /**
+     * The executor used to read and decode chunks in the background.
+     */
+    private final Executor ioExecutor;
+
+    /**
+     * The pool used to serialize, compress and write chunks being saved.
+     */
+    private final ForkJoinPool savePool;
+
+    /**
+     * Chunks which are being loaded in the background, keyed by their packed
+     * coordinates.
+     */
+    private final StripedLongObjectMap<PendingLoad> pendingLoads = new StripedLongObjectMap<PendingLoad>();
+
+    /**
+     * Background loads which have been read and are waiting to be installed
+     * on the world thread.
+     */
+    private final Queue<PendingLoad> installQueue = new ConcurrentLinkedQueue<PendingLoad>();
+
+    /**
+     * How many nanoseconds installing background loads may take each tick.
+     */
+    private static final long INSTALL_NANOS = 10000000L;
+
+    /**
+     * How many ticks to wait between scans for chunks to evict.
+     */
+    private static final int EVICTION_SCAN_INTERVAL = 20;
+
+    /**
+     * The number of chunks currently loaded.
+     */
+    private final AtomicInteger resident = new AtomicInteger();
+
+    /**
+     * The number of chunks which have been unloaded by eviction.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * The number of loaded chunks above which unused chunks are evicted
+     * regardless of age, or 0 for no limit.
      */
-    private final ConcurrentMap<GlowChunk.Key, Set<ChunkLock>> locks = new ConcurrentHashMap<GlowChunk.Key, Set<ChunkLock>>();
+    private volatile int chunkLimit = 0;
 
     /**
-     * A Random object to be used to generate chunks.
+     * How many ticks a chunk may go unused before it is evicted.
      */
-    private final Random chunkRandom = new Random();
+    private volatile int unloadDelay = 600;
 
     /**
-     * A Random object to be used to populate chunks.
+     * How many nanoseconds eviction may take each tick.
      */
-    private final Random popRandom = new Random();
+    private volatile long evictionNanos = 5000000L;
+
+    /**
+     * How many nanoseconds incremental saving may take each tick.
+     */
+    private volatile long saveNanos = 5000000L;
+
+    /**
+     * Changed chunks waiting to be written by an incremental save. Only
+     * used from the world thread.
+     */
+    private final Queue<GlowChunk> saveQueue = new ArrayDeque<GlowChunk>();
+
+    /**
+     * Saves of evicted chunks which may not have been written yet, keyed by
+     * their packed coordinates. Loads of those chunks wait for them.
+     */
+    private final StripedLongObjectMap<ForkJoinTask<?>> evictionSaves = new StripedLongObjectMap<ForkJoinTask<?>>();
+
+    /**
+     * The number of saves queued on the save pool which have not finished.
+     */
+    private final AtomicInteger queuedSaves = new AtomicInteger();
+
+    /**
+     * The current tick, used to record when each chunk was last used.
+     */
+    private volatile int currentTick = 0;
+
+    /**
+     * Unused chunks waiting to be considered for eviction, least recently
+     * used first. Only accessed from the world thread.
+     */
+    private final ArrayDeque<GlowChunk> evictionQueue = new ArrayDeque<GlowChunk>();
+
+    /**
+     * The tick at which the eviction queue was last filled.
+     */
+    private int lastScan = 0;
+
+    /**
+     * The scheduler which runs block populators.
+     */
+    private final PopulationScheduler populationScheduler;
 
     /**
      * Creates a new chunk manager with the specified I/O service and world
      * generator.
      * @param service The I/O service.
      * @param generator The world generator.
+     * @param ioExecutor The executor to read chunks in the background with.
+     * @param savePool The pool to serialize and write saved chunks with.
+     * @param generationExecutor The executor to generate new chunks in the background with.
      */
-    public ChunkManager(GlowWorld world, ChunkIoService service, ChunkGenerator generator) {
+    public ChunkManager(GlowWorld world, ChunkIoService service, ChunkGenerator generator, Executor ioExecutor, ForkJoinPool savePool, Executor generationExecutor) {
         this.world = world;
         this.service = service;
         this.generator = generator;
+        this.ioExecutor = ioExecutor;
+        this.savePool = savePool;
+        this.generationExecutor = generationExecutor;
+        populationScheduler = new PopulationScheduler(world, generationExecutor);
     }
 
     /**
@@ -80,9 +197,26 @@ public final class ChunkManager {
      * @return The chunk.
      */
     public GlowChunk getChunk(int x, int z) {
-        GlowChunk.Key key = new GlowChunk.Key(x, z);
-        // a simple new GlowChunk() does not allocate significant memory
-        return getOrCreate(chunks, key, new GlowChunk(world, x, z));
+        // unloaded chunks may have been evicted since, so always look those up
+        GlowChunk chunk = lastChunk.get();
+        if (chunk != null && chunk.getX() == x && chunk.getZ() == z && chunk.isLoaded()) {
+            chunk.setLastUsed(currentTick);
+            return chunk;
+        }
+
+        long key = GlowChunk.Key.toLong(x, z);
+        chunk = chunks.get(key);
+        if (chunk == null) {
+            // a simple new GlowChunk() does not allocate significant memory
+            GlowChunk created = new GlowChunk(world, x, z);
+            chunk = chunks.putIfAbsent(key, created);
+            if (chunk == null) {
+                chunk = created;
+            }
+        }
+        chunk.setLastUsed(currentTick);
+        lastChunk.set(chunk);
+        return chunk;
     }
 
     /**
@@ -95,8 +229,16 @@ public final class ChunkManager {
     public boolean loadChunk(int x, int z, boolean generate) {
         GlowChunk chunk = getChunk(x, z);
 
+        // anything a background load has read may be out of date by the
+        // time it is installed, since the chunk may be changed and saved
+        PendingLoad pending = pendingLoads.get(GlowChunk.Key.toLong(x, z));
+        if (pending != null) {
+            pending.superseded = true;
+        }
+
         // try to load chunk
         try {
+            awaitEvictionSave(x, z);
             if (service.read(chunk, x, z)) {
                 EventFactory.onChunkLoad(chunk, false);
                 return true;
@@ -129,6 +271,119 @@ public final class ChunkManager {
         return true;
     }
 
+    /**
+     * Load a chunk in the background, optionally generating it. The chunk is
+     * read and decoded on the chunk I/O pool, then installed or generated on
+     * the world thread during {@link #pulse()}, after which the callback is
+     * called there. If the chunk is already loaded the callback is called
+     * immediately. Requests for a chunk which is already being loaded share
+     * the same load.
+     * @param x The X coordinate of the chunk to load.
+     * @param z The Z coordinate of the chunk to load.
+     * @param generate Whether to generate the chunk if needed.
+     * @param callback The callback to call once loaded, or null.
+     * @return A Future which yields whether the chunk was loaded.
+     */
+    public Future<Boolean> loadChunkAsync(int x, int z, boolean generate, LoadCallback callback) {
+        GlowChunk chunk = getChunk(x, z);
+        long key = GlowChunk.Key.toLong(x, z);
+        while (!chunk.isLoaded()) {
+            PendingLoad load = pendingLoads.get(key);
+            if (load == null) {
+                PendingLoad created = new PendingLoad(x, z);
+                created.attach(generate, callback);
+                load = pendingLoads.putIfAbsent(key, created);
+                if (load == null) {
+                    try {
+                        ioExecutor.execute(created);
+                    } catch (RejectedExecutionException ex) {
+                        // the pool is shutting down, so read right here
+                        created.run();
+                    }
+                    return created.future;
+                }
+            }
+            if (load.attach(generate, callback)) {
+                return load.future;
+            }
+            // that load has just finished, so check again
+        }
+
+        if (callback != null) {
+            callback.chunkLoaded(chunk, true);
+        }
+        FutureTask<Boolean> result = new FutureTask<Boolean>(new Runnable() {
+            public void run() {
+            }
+        }, true);
+        result.run();
+        return result;
+    }
+
+    /**
+     * Check whether a chunk is currently being loaded in the background.
+     * @param x The X coordinate.
+     * @param z The Z coordinate.
+     * @return Whether a background load of the chunk is pending.
+     */
+    public boolean isChunkLoading(int x, int z) {
+        return pendingLoads.get(GlowChunk.Key.toLong(x, z)) != null;
+    }
+
+    /**
+     * Install a chunk which has been read in the background, or generate it
+     * if it was not stored. Called on the world thread.
+     */
+    private boolean install(PendingLoad load) {
+        GlowChunk chunk = getChunk(load.x, load.z);
+        if (chunk.isLoaded()) {
+            // it has been loaded some other way in the meantime
+            return true;
+        }
+        if (load.superseded) {
+            // it was loaded synchronously and has been unloaded since, so
+            // read it again rather than installing what may be older data
+            return loadChunk(load.x, load.z, load.shouldGenerate());
+        }
+
+        PreparedChunk prepared = load.prepared;
+        if (prepared != null) {
+            prepared.install(chunk);
+            EventFactory.onChunkLoad(chunk, false);
+            return true;
+        }
+
+        if (!load.shouldGenerate()) {
+            return false;
+        }
+        GlowChunk.ChunkSection[] generated = load.generated;
+        if (generated != null) {
+            chunk.initializeSections(generated);
+            EventFactory.onChunkLoad(chunk, true);
+            return true;
+        }
+        try {
+            generateChunk(chunk, load.x, load.z);
+        } catch (Exception ex) {
+            GlowServer.logger.log(Level.SEVERE, "Error while generating chunk (" + load.x + "," + load.z + ")", ex);
+            return false;
+        }
+        EventFactory.onChunkLoad(chunk, true);
+        return true;
+    }
+
+    /**
+     * Check whether a chunk is loaded, without creating an entry for it if
+     * it has never been accessed.
+     * @param x The X coordinate.
+     * @param z The Z coordinate.
+     * @return Whether the chunk is loaded.
+     */
+    public boolean isChunkLoaded(int x, int z) {
+        GlowChunk chunk = chunks.get(GlowChunk.Key.toLong(x, z));
+        return chunk != null && chunk.isLoaded();
+    }
+
     /**
      * Check whether a chunk has locks on it preventing it from being unloaded.
      * @param x The X coordinate.
@@ -136,29 +391,246 @@ public final class ChunkManager {
      * @return Whether the chunk is in use.
      */
     public boolean isChunkInUse(int x, int z) {
-        GlowChunk.Key key = new GlowChunk.Key(x, z);
-        Set<ChunkLock> lockSet = locks.get(key);
-        return lockSet != null && lockSet.size() != 0;
+        Set<ChunkLock> lockSet = locks.get(GlowChunk.Key.toLong(x, z));
+        if (lockSet == null) {
+            return false;
+        }
+        synchronized (lockSet) {
+            return !lockSet.isEmpty();
+        }
+    }
+
+    /**
+     * Get the number of chunks currently loaded.
+     * @return The number of resident chunks.
+     */
+    public int getResidentChunks() {
+        return resident.get();
+    }
+
+    /**
+     * Get the number of chunks which have been unloaded by eviction.
+     * @return The number of evicted chunks.
+     */
+    public long getEvictedChunks() {
+        return evictions.get();
+    }
+
+    /**
+     * Get the number of loaded chunks above which unused chunks are evicted
+     * regardless of how recently they were used.
+     * @return The chunk limit, or 0 for no limit.
+     */
+    public int getChunkLimit() {
+        return chunkLimit;
+    }
+
+    /**
+     * Set the number of loaded chunks above which unused chunks are evicted
+     * regardless of how recently they were used.
+     * @param limit The chunk limit, or 0 for no limit.
+     */
+    public void setChunkLimit(int limit) {
+        chunkLimit = Math.max(0, limit);
+    }
+
+    /**
+     * Set how many ticks a chunk may go unused before it is evicted.
+     * @param ticks The number of ticks.
+     */
+    public void setUnloadDelay(int ticks) {
+        unloadDelay = Math.max(0, ticks);
+    }
+
+    /**
+     * Set how long eviction may take each tick.
+     * @param millis The time in milliseconds.
+     */
+    public void setEvictionTime(int millis) {
+        evictionNanos = Math.max(0, millis) * 1000000L;
+    }
+
+    /**
+     * Set how long incremental saving may take each tick.
+     * @param millis The time in milliseconds.
+     */
+    public void setSaveTime(int millis) {
+        saveNanos = Math.max(0, millis) * 1000000L;
+    }
+
+    /**
+     * Get how many chunks are waiting to be written by an incremental save.
+     * @return The number of pending chunk saves.
+     */
+    public int getPendingSaves() {
+        return saveQueue.size();
     }
 
     /**
-     * Unload chunks with no locks on them.
+     * Queue every loaded chunk which has changed since it was last saved, to
+     * be captured a few at a time by {@link #pulse()} and written on the
+     * save pool. Chunks still waiting
+     * from a previous incremental save are queued again only if they are
+     * still changed. Must be called from the world thread.
      */
-    public void unloadOldChunks() {
-        for (Map.Entry<GlowChunk.Key, GlowChunk> entry : chunks.entrySet()) {
-            Set<ChunkLock> lockSet = locks.get(entry.getKey());
-            if (lockSet == null || lockSet.size() == 0) {
-                if (!entry.getValue().unload(true, true)) {
-                    GlowServer.logger.warning("Failed to unload chunk " + world.getName() + ":" + entry.getKey());
+    public void scheduleSave() {
+        saveQueue.clear();
+        for (GlowChunk chunk : chunks.values()) {
+            if (chunk.isLoaded() && chunk.isDirty()) {
+                saveQueue.add(chunk);
+            }
+        }
+    }
+
+    /**
+     * Record that a chunk has been loaded.
+     */
+    void chunkLoaded() {
+        resident.incrementAndGet();
+    }
+
+    /**
+     * Record that a chunk has been unloaded.
+     */
+    void chunkUnloaded() {
+        resident.decrementAndGet();
+    }
+
+    /**
+     * Evict unused chunks for one tick, taking no longer than the eviction
+     * time. Chunks which no locks are held on are considered least recently
+     * used first: while more chunks than the limit are loaded they are
+     * unloaded regardless of age, and otherwise only once they have gone
+     * unused for the unload delay. Chunks loaded in the background are
+     * installed and chunks from an incremental save are written first. Must
+     * be called from the world thread.
+     */
+    public void pulse() {
+        int tick = currentTick + 1;
+        currentTick = tick;
+
+        // install chunks which have been read in the background
+        long installDeadline = System.nanoTime() + INSTALL_NANOS;
+        PendingLoad load;
+        while (System.nanoTime() < installDeadline && (load = installQueue.poll()) != null) {
+            load.complete();
+        }
+
+        // capture changed chunks from an incremental save
+        long saveDeadline = System.nanoTime() + saveNanos;
+        GlowChunk dirty;
+        while (System.nanoTime() < saveDeadline && (dirty = saveQueue.poll()) != null) {
+            if (dirty.isLoaded() && dirty.isDirty()) {
+                saveChunkAsync(dirty);
+            }
+        }
+
+        if (evictionQueue.isEmpty()) {
+            if (tick - lastScan < EVICTION_SCAN_INTERVAL) {
+                return;
+            }
+            lastScan = tick;
+            scanForEviction();
+        }
+
+        long deadline = System.nanoTime() + evictionNanos;
+        while (!evictionQueue.isEmpty() && System.nanoTime() < deadline) {
+            GlowChunk chunk = evictionQueue.pollFirst();
+            int lastUsed = chunk.getLastUsed();
+            if (lastUsed - lastScan >= 0) {
+                // used since the scan, so leave it for the next one
+                continue;
+            }
+            int limit = chunkLimit;
+            boolean overLimit = limit > 0 && resident.get() > limit;
+            if (!overLimit && tick - lastUsed < unloadDelay) {
+                // everything after this chunk was used more recently
+                evictionQueue.clear();
+                break;
+            }
+            evict(chunk);
+        }
+    }
+
+    /**
+     * Fill the eviction queue with the loaded chunks which are not in use,
+     * and drop unloaded chunks and empty lock sets from the maps.
+     */
+    private void scanForEviction() {
+        List<GlowChunk> candidates = new ArrayList<GlowChunk>();
+        for (GlowChunk chunk : chunks.values()) {
+            long key = GlowChunk.Key.toLong(chunk.getX(), chunk.getZ());
+            boolean inUse = !dropIfUnlocked(key);
+            if (!chunk.isLoaded()) {
+                if (chunks.remove(key, chunk)) {
+                    chunk.markEvicted();
+                }
+            } else if (!inUse) {
+                candidates.add(chunk);
+            }
+        }
+
+        // sort on a copy of the ages, since chunks may be used meanwhile
+        long[] order = new long[candidates.size()];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = ((long) (candidates.get(i).getLastUsed() - lastScan) << 32) | i;
+        }
+        Arrays.sort(order);
+        for (long entry : order) {
+            evictionQueue.add(candidates.get((int) entry));
+        }
+    }
+
+    /**
+     * Save and unload a chunk if it is still loaded and not in use, and
+     * evict it from the map. The chunk is captured here but written on the
+     * save pool, and loads of it wait until the write has finished.
+     */
+    private void evict(GlowChunk chunk) {
+        if (!chunk.isLoaded() || isChunkInUse(chunk.getX(), chunk.getZ())) {
+            return;
+        }
+        if (chunk.isDirty()) {
+            final long key = GlowChunk.Key.toLong(chunk.getX(), chunk.getZ());
+            final int modCount = chunk.getModCount();
+            final PreparedSave save = service.capture(chunk);
+            final GlowChunk saved = chunk;
+            ForkJoinTask<?> task = ForkJoinTask.adapt(new Runnable() {
+                public void run() {
+                    try {
+                        writeSave(saved, modCount, save);
+                    } finally {
+                        evictionSaves.remove(key);
+                        saveFinished();
+                    }
                 }
+            });
+            // a load of the chunk since it was last evicted waited for
+            // that save, so there is normally none left to wait for here
+            ForkJoinTask<?> previous;
+            while ((previous = evictionSaves.putIfAbsent(key, task)) != null) {
+                previous.quietlyJoin();
             }
-            // cannot remove old chunks from cache - GlowBlock and GlowBlockState keep references.
-            // they must either be changed to look up the chunk again all the time, or this code left out.
-            /*if (!entry.getValue().isLoaded()) {
-                //GlowServer.logger.info("Removing from cache " + entry.getKey());
-                chunks.entrySet().remove(entry);
-                locks.remove(entry.getKey());
-            }*/
+            submitSave(task);
+        }
+        if (chunk.unload(false, true)) {
+            evictions.incrementAndGet();
+            if (chunks.remove(GlowChunk.Key.toLong(chunk.getX(), chunk.getZ()), chunk)) {
+                chunk.markEvicted();
+            }
+        } else {
+            GlowServer.logger.warning("Failed to unload chunk " + world.getName() + ":" + chunk.getX() + "," + chunk.getZ());
+        }
+    }
+
+    /**
+     * Wait until any save of a chunk made when it was evicted has been
+     * written, so that it is not loaded from older data.
+     */
+    private void awaitEvictionSave(int x, int z) {
+        ForkJoinTask<?> save = evictionSaves.get(GlowChunk.Key.toLong(x, z));
+        if (save != null) {
+            save.quietlyJoin();
         }
     }
 
@@ -173,30 +645,29 @@ public final class ChunkManager {
         }
 
         // cancel out if the 3x3 around it isn't available
-        for (int x2 = x - 1; x2 <= x + 1; ++x2) {
-            for (int z2 = z - 1; z2 <= z + 1; ++z2) {
-                if (!getChunk(x2, z2).isLoaded() && (!force || !loadChunk(x2, z2, true))) {
-                    return;
-                }
-            }
+        if (!loadNeighbourhood(x, z, force)) {
+            return;
         }
 
         // it might have loaded since before, so check again that it's not already populated
         if (chunk.isPopulated()) {
             return;
         }
-        chunk.setPopulated(true);
-
-        popRandom.setSeed(world.getSeed());
-        long xRand = popRandom.nextLong() / 2 * 2 + 1;
-        long zRand = popRandom.nextLong() / 2 * 2 + 1;
-        popRandom.setSeed((long) x * xRand + (long) z * zRand ^ world.getSeed());
+        populationScheduler.populate(Collections.singletonList(chunk));
+    }
 
-        for (BlockPopulator p : world.getPopulators()) {
-            p.populate(world, popRandom, chunk);
+    /**
+     * Check that the 3x3 around a chunk is loaded, optionally loading it.
+     */
+    private boolean loadNeighbourhood(int x, int z, boolean force) {
+        for (int x2 = x - 1; x2 <= x + 1; ++x2) {
+            for (int z2 = z - 1; z2 <= z + 1; ++z2) {
+                if (!getChunk(x2, z2).isLoaded() && (!force || !loadChunk(x2, z2, true))) {
+                    return false;
+                }
+            }
         }
-
-        EventFactory.onChunkPopulate(chunk);
+        return true;
     }
 
     /**
@@ -209,50 +680,85 @@ public final class ChunkManager {
         populateChunk(x, z, true);
     }
 
+    /**
+     * Force many chunks to be populated, loading the areas around them. Chunks
+     * whose surroundings do not overlap are populated in parallel, with the
+     * same result as populating them one by one in the order given.
+     * @param keys The chunks to populate.
+     */
+    public void forcePopulation(Collection<GlowChunk.Key> keys) {
+        List<GlowChunk> ready = new ArrayList<GlowChunk>(keys.size());
+        for (GlowChunk.Key key : keys) {
+            GlowChunk chunk = getChunk(key.getX(), key.getZ());
+            if (!chunk.isPopulated() && loadNeighbourhood(key.getX(), key.getZ(), true)) {
+                ready.add(chunk);
+            }
+        }
+        populationScheduler.populate(ready);
+    }
+
     /**
      * Initialize a single chunk from the chunk generator.
      */
     private void generateChunk(GlowChunk chunk, int x, int z) {
-        chunkRandom.setSeed((long) x * 341873128712L + (long) z * 132897987541L);
+        chunk.initializeSections(generateSections(x, z));
+    }
+
+    /**
+     * Check whether new chunks may be generated off the world thread. Only
+     * the built-in generators are known to be safe to run concurrently.
+     */
+    private boolean canGenerateAsync() {
+        return generationExecutor != null && generator instanceof GlowChunkGenerator;
+    }
+
+    /**
+     * Run the chunk generator for a single chunk without touching the chunk
+     * itself, so that it may be called from any thread. Each call has its
+     * own Random, seeded from the chunk coordinates.
+     */
+    private GlowChunk.ChunkSection[] generateSections(int x, int z) {
+        Random random = new Random((long) x * 341873128712L + (long) z * 132897987541L);
         ChunkGenerator.BiomeGrid biomes = new BiomeGrid(x, z);
 
         // try for extended sections
-        short[][] extSections = generator.generateExtBlockSections(world, chunkRandom, x, z, biomes);
+        short[][] extSections = generator.generateExtBlockSections(world, random, x, z, biomes);
         if (extSections != null) {
             throw new UnsupportedOperationException("Extended chunk sections not yet supported");
         }
 
         // normal sections
-        byte[][] blockSections = generator.generateBlockSections(world, chunkRandom, x, z, biomes);
+        byte[][] blockSections = generator.generateBlockSections(world, random, x, z, biomes);
         if (blockSections != null) {
             GlowChunk.ChunkSection[] sections = new GlowChunk.ChunkSection[blockSections.length];
             for (int i = 0; i < blockSections.length; ++i) {
-                // this is sort of messy.
-                sections[i] = new GlowChunk.ChunkSection();
-                System.arraycopy(blockSections[i], 0, sections[i].types, 0, sections[i].types.length);
+                // null sections are empty
+                if (blockSections[i] != null) {
+                    sections[i] = new GlowChunk.ChunkSection(blockSections[i]);
+                }
             }
-            chunk.initializeSections(sections);
-            return;
+            return sections;
         }
 
         // deprecated flat generation
-        byte[] types = generator.generate(world, chunkRandom, x, z);
+        byte[] types = generator.generate(world, random, x, z);
         //GlowServer.logger.warning("Using deprecated generate() in generator: " + generator.getClass().getName());
 
         GlowChunk.ChunkSection[] sections = new GlowChunk.ChunkSection[8];
         for (int sy = 0; sy < sections.length; ++sy) {
-            GlowChunk.ChunkSection sec = new GlowChunk.ChunkSection();
+            byte[] secTypes = new byte[16 * 16 * 16];
             int by = 16 * sy;
             for (int cx = 0; cx < 16; ++cx) {
                 for (int cz = 0; cz < 16; ++cz) {
                     for (int cy = by; cy < by + 16; ++cy) {
-                        sec.types[sec.index(cx, cy, cz)] = types[(cx * 16 + cz) * 128 + cy];
+                        secTypes[((cy & 0xf) << 8) | (cz << 4) | cx] = types[(cx * 16 + cz) * 128 + cy];
                     }
                 }
             }
-            sections[sy] = sec;
+            GlowChunk.ChunkSection sec = new GlowChunk.ChunkSection(secTypes);
+            sections[sy] = sec.isEmpty() ? null : sec;
         }
-        chunk.initializeSections(sections);
+        return sections;
     }
 
     /**
@@ -294,10 +800,127 @@ public final class ChunkManager {
      * @param z The Z coordinate.
      */
     public boolean forceSave(int x, int z) {
-        GlowChunk chunk = getChunk(x, z);
-        if (chunk.isLoaded()) {
+        return saveChunk(getChunk(x, z));
+    }
+
+    /**
+     * Save every loaded chunk which has changed since it was last saved.
+     * Each chunk is captured on the calling thread, which should own the
+     * world, then serialized, compressed and written on the save pool.
+     * @param wait Whether to wait until every chunk has been written.
+     */
+    public void saveChunks(boolean wait) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+        for (GlowChunk chunk : chunks.values()) {
+            if (chunk.isLoaded() && chunk.isDirty()) {
+                tasks.add(saveChunkAsync(chunk));
+            }
+        }
+        if (wait) {
+            for (ForkJoinTask<?> task : tasks) {
+                task.quietlyJoin();
+            }
+        }
+    }
+
+    /**
+     * Write a chunk right away if it is loaded.
+     */
+    private boolean saveChunk(GlowChunk chunk) {
+        if (!chunk.isLoaded()) {
+            return false;
+        }
+        int modCount = chunk.getModCount();
+        return writeSave(chunk, modCount, service.capture(chunk));
+    }
+
+    /**
+     * Queue a chunk to be written on the save pool if it has changed since
+     * it was last saved. Called on the world thread.
+     * @param x The X coordinate.
+     * @param z The Z coordinate.
+     */
+    public void saveChunkAsync(int x, int z) {
+        GlowChunk chunk = chunks.get(GlowChunk.Key.toLong(x, z));
+        if (chunk != null && chunk.isLoaded() && chunk.isDirty()) {
+            saveChunkAsync(chunk);
+        }
+    }
+
+    /**
+     * Capture a loaded chunk and queue it to be written on the save pool.
+     */
+    private ForkJoinTask<?> saveChunkAsync(final GlowChunk chunk) {
+        final int modCount = chunk.getModCount();
+        final PreparedSave save = service.capture(chunk);
+        ForkJoinTask<?> task = ForkJoinTask.adapt(new Runnable() {
+            public void run() {
+                try {
+                    writeSave(chunk, modCount, save);
+                } finally {
+                    saveFinished();
+                }
+            }
+        });
+        submitSave(task);
+        return task;
+    }
+
+    /**
+     * Queue a save on the save pool. The task must call
+     * {@link #saveFinished()} once it is done.
+     */
+    private void submitSave(ForkJoinTask<?> task) {
+        queuedSaves.incrementAndGet();
+        try {
+            savePool.execute(task);
+        } catch (RejectedExecutionException ex) {
+            // the pool is shutting down, so write right here
+            task.invoke();
+        }
+    }
+
+    private void saveFinished() {
+        if (queuedSaves.decrementAndGet() == 0) {
+            synchronized (queuedSaves) {
+                queuedSaves.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait until every save of this world queued on the save pool has been
+     * written, so that the chunk I/O service can be unloaded.
+     */
+    public void awaitSaves() {
+        boolean interrupted = false;
+        synchronized (queuedSaves) {
+            while (queuedSaves.get() > 0) {
+                try {
+                    queuedSaves.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write a captured chunk, unless a copy captured later has already been
+     * written, and mark it saved as of the modifications made before it
+     * was captured.
+     */
+    private boolean writeSave(GlowChunk chunk, int modCount, PreparedSave save) {
+        synchronized (chunk.getSaveLock()) {
+            if (modCount - chunk.getSavedModCount() < 0) {
+                return true;
+            }
             try {
-                service.write(x, z, chunk);
+                save.write();
+                chunk.markSaved(modCount);
                 return true;
             } catch (IOException ex) {
                 GlowServer.logger.log(Level.SEVERE, "Error while saving chunk: {0}", ex.getMessage());
@@ -305,7 +928,17 @@ public final class ChunkManager {
                 return false;
             }
         }
-        return false;
+    }
+
+    /**
+     * Rewrite this world's stored chunks to reclaim unused space. Each
+     * region is locked while it is compacted, so this is safe to call from
+     * any thread while the world is in use.
+     * @return The number of bytes reclaimed.
+     * @throws IOException if an I/O error occurs.
+     */
+    public long compactStorage() throws IOException {
+        return service.compact();
     }
 
     /**
@@ -327,16 +960,185 @@ public final class ChunkManager {
         }
     }
 
-    private Set<ChunkLock> getLockSet(GlowChunk.Key key) {
-        return getOrCreate(locks, key, new HashSet<ChunkLock>());
+    /**
+     * Add a lock to a chunk's lock set, retrying if the set is dropped
+     * from the map in the meantime.
+     */
+    private void addLock(GlowChunk.Key key, ChunkLock lock) {
+        long packed = GlowChunk.Key.toLong(key.getX(), key.getZ());
+        while (true) {
+            Set<ChunkLock> lockSet = locks.get(packed);
+            if (lockSet == null) {
+                lockSet = new HashSet<ChunkLock>();
+                Set<ChunkLock> prev = locks.putIfAbsent(packed, lockSet);
+                if (prev != null) {
+                    lockSet = prev;
+                }
+            }
+            synchronized (lockSet) {
+                if (locks.get(packed) == lockSet) {
+                    lockSet.add(lock);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove a lock from a chunk's lock set. The empty set is left for
+     * {@link #dropIfUnlocked} to drop.
+     */
+    private void removeLock(GlowChunk.Key key, ChunkLock lock) {
+        Set<ChunkLock> lockSet = locks.get(GlowChunk.Key.toLong(key.getX(), key.getZ()));
+        if (lockSet != null) {
+            synchronized (lockSet) {
+                lockSet.remove(lock);
+            }
+        }
+    }
+
+    /**
+     * Drop a chunk's lock set from the map if it is empty.
+     * @return Whether the chunk has no locks on it.
+     */
+    private boolean dropIfUnlocked(long packed) {
+        Set<ChunkLock> lockSet = locks.get(packed);
+        if (lockSet == null) {
+            return true;
+        }
+        synchronized (lockSet) {
+            if (!lockSet.isEmpty()) {
+                return false;
+            }
+            locks.remove(packed, lockSet);
+            return true;
+        }
+    }
+
+    /**
+     * A callback for when a chunk requested with {@link #loadChunkAsync} has
+     * finished loading.
+     */
+    public interface LoadCallback {
+        /**
+         * Called on the world thread once the load has finished.
+         * @param chunk The chunk.
+         * @param loaded Whether the chunk is now loaded.
+         */
+        public void chunkLoaded(GlowChunk chunk, boolean loaded);
     }
 
     /**
-     * Helper method for getting or creating a value in ConcurrentMap.
+     * A chunk which is being loaded in the background.
      */
-    private <K, V> V getOrCreate(ConcurrentMap<K, V> map, K key, V def) {
-        V prev = map.putIfAbsent(key, def);
-        return prev == null ? def : prev;
+    private final class PendingLoad implements Runnable {
+        private final int x, z;
+        private final List<LoadCallback> callbacks = new ArrayList<LoadCallback>(1);
+        private boolean generate = false;
+        private boolean done = false;
+        private volatile PreparedChunk prepared;
+        private volatile GlowChunk.ChunkSection[] generated;
+
+        /**
+         * Whether the chunk has been loaded synchronously since this load
+         * started, so that what it read may be out of date.
+         */
+        private volatile boolean superseded = false;
+
+        private final FutureTask<Boolean> future = new FutureTask<Boolean>(new Callable<Boolean>() {
+            public Boolean call() {
+                return install(PendingLoad.this);
+            }
+        });
+
+        public PendingLoad(int x, int z) {
+            this.x = x;
+            this.z = z;
+        }
+
+        /**
+         * Add a request to this load, unless it has already finished.
+         * @return Whether the request was added.
+         */
+        public synchronized boolean attach(boolean generate, LoadCallback callback) {
+            if (done) {
+                return false;
+            }
+            this.generate |= generate;
+            if (callback != null) {
+                callbacks.add(callback);
+            }
+            return true;
+        }
+
+        public synchronized boolean shouldGenerate() {
+            return generate;
+        }
+
+        /**
+         * Read and decode the chunk, then generate it in the background if
+         * it was not stored, and queue it for installation.
+         */
+        public void run() {
+            try {
+                awaitEvictionSave(x, z);
+                prepared = service.prepare(x, z);
+            } catch (Exception e) {
+                GlowServer.logger.log(Level.SEVERE, "Error while loading chunk (" + x + "," + z + ")", e);
+            }
+            if (prepared == null && shouldGenerate() && canGenerateAsync()) {
+                try {
+                    generationExecutor.execute(new Runnable() {
+                        public void run() {
+                            generate();
+                        }
+                    });
+                    return;
+                } catch (RejectedExecutionException ex) {
+                    // the pool is shutting down, so generate on the world thread
+                }
+            }
+            installQueue.add(this);
+        }
+
+        /**
+         * Generate the chunk's sections on the generation pool, then queue it
+         * for installation. On failure it is generated on the world thread.
+         */
+        private void generate() {
+            try {
+                generated = generateSections(x, z);
+            } catch (Exception e) {
+                GlowServer.logger.log(Level.SEVERE, "Error while generating chunk (" + x + "," + z + ") in the background", e);
+            }
+            installQueue.add(this);
+        }
+
+        /**
+         * Install the chunk and call the callbacks, on the world thread.
+         */
+        public void complete() {
+            future.run();
+
+            List<LoadCallback> toCall;
+            synchronized (this) {
+                done = true;
+                toCall = new ArrayList<LoadCallback>(callbacks);
+                callbacks.clear();
+            }
+            pendingLoads.remove(GlowChunk.Key.toLong(x, z), this);
+
+            boolean loaded = false;
+            try {
+                loaded = future.get();
+            } catch (InterruptedException | ExecutionException e) {
+                GlowServer.logger.log(Level.SEVERE, "Error while loading chunk (" + x + "," + z + ")", e);
+            }
+            GlowChunk chunk = getChunk(x, z);
+            for (LoadCallback callback : toCall) {
+                callback.chunkLoaded(chunk, loaded);
+            }
+        }
     }
 
     /**
@@ -352,23 +1154,21 @@ public final class ChunkManager {
             this.desc = desc;
         }
 
-        public void acquire(GlowChunk.Key key) {
-            if (keys.contains(key)) return;
-            keys.add(key);
-            cm.getLockSet(key).add(this);
+        public synchronized void acquire(GlowChunk.Key key) {
+            if (!keys.add(key)) return;
+            cm.addLock(key, this);
             //GlowServer.logger.info(this + " acquires " + key);
         }
 
-        public void release(GlowChunk.Key key) {
-            if (!keys.contains(key)) return;
-            keys.remove(key);
-            cm.getLockSet(key).remove(this);
+        public synchronized void release(GlowChunk.Key key) {
+            if (!keys.remove(key)) return;
+            cm.removeLock(key, this);
             //GlowServer.logger.info(this + " releases " + key);
         }
 
-        public void clear() {
+        public synchronized void clear() {
             for (GlowChunk.Key key : keys) {
-                cm.getLockSet(key).remove(this);
+                cm.removeLock(key, this);
                 //GlowServer.logger.info(this + " clearing " + key);
             }
             keys.clear();
@@ -0,0 +1,448 @@
+package net.glowstone;
+
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.ConsoleCommandSender;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+
+/**
+ * Generates, populates and saves every chunk within a square radius of a
+ * point ahead of time, working outwards in a spiral. Chunks are generated
+ * on the background pools, then populated on the world thread once their
+ * neighbours have arrived, and saved and left for eviction once they are
+ * no longer needed as neighbours. Progress is stored in the world folder so
+ * that an interrupted run carries on when the world is next loaded.
+ * <p>
+ * The spiral visits the center first, then each ring of chunks around it in
+ * turn, so the first (2k + 1)<sup>2</sup> chunks always cover radius k.
+ * Chunks stay locked from when they are requested until the ring outside
+ * them has been populated, so about three rings are held at once. That
+ * window is not counted against the chunk limit, which would otherwise stop
+ * a large run part of the way through.
+ */
+public final class ChunkPregenerator {
+
+    /**
+     * The largest radius a run may have, which keeps the chunk counts and
+     * spiral indices within an int.
+     */
+    public static final int MAX_RADIUS = 20000;
+
+    /**
+     * The file in the world folder holding the progress of a run.
+     */
+    private static final String STATE_FILE = "pregen.properties";
+
+    /**
+     * How many ticks pass between progress reports.
+     */
+    private static final int REPORT_TICKS = 10 * 20;
+
+    /**
+     * How many chunks may be waiting to be loaded or generated at once.
+     */
+    private static final int MAX_IN_FLIGHT = 128;
+
+    /**
+     * How many chunks are handed to the population scheduler at once.
+     */
+    private static final int POPULATE_BATCH = 64;
+
+    private final GlowWorld world;
+    private final ChunkManager chunks;
+    private final ChunkManager.ChunkLock lock;
+    private final CommandSender sender;
+    private final int centerX, centerZ, radius;
+
+    /**
+     * The number of chunks to populate, and the number to generate, which
+     * includes one more ring for the neighbours of the outermost chunks.
+     */
+    private final int total, generateTotal;
+
+    /**
+     * Spiral indices of the next chunk to request, populate and release.
+     */
+    private int requested, populated, released;
+
+    private int inFlight = 0;
+
+    /**
+     * A running average of how long populating one chunk takes, in
+     * nanoseconds, or 0 before anything has been populated.
+     */
+    private long populateNanos = 0;
+
+    private final int startIndex;
+    private final long startTime = System.currentTimeMillis();
+    private int ticks = 0;
+    private volatile boolean stopped = false;
+    private volatile boolean cancelled = false;
+
+    private ChunkPregenerator(GlowWorld world, CommandSender sender, int centerX, int centerZ, int radius, int index) {
+        this.world = world;
+        this.chunks = world.getChunkManager();
+        this.sender = sender;
+        this.centerX = centerX;
+        this.centerZ = centerZ;
+        if (radius < 0 || radius > MAX_RADIUS) {
+            throw new IllegalArgumentException("Radius must be between 0 and " + MAX_RADIUS + ": " + radius);
+        }
+        this.radius = radius;
+        total = (2 * radius + 1) * (2 * radius + 1);
+        generateTotal = (2 * radius + 3) * (2 * radius + 3);
+        populated = startIndex = Math.min(index, total);
+        // the ring inside the first one left was saved and let go of, but is
+        // still needed as neighbours, so it is loaded again in the background
+        int ring = ring(startIndex);
+        requested = released = ring >= 2 ? ringEnd(ring - 2) : 0;
+        lock = world.newChunkLock("pregen");
+    }
+
+    /**
+     * Start pregenerating the chunks around a world's spawn.
+     * @param world The world.
+     * @param sender Who to send progress reports to, or null.
+     * @param radius The radius in chunks.
+     * @return The pregenerator.
+     * @throws IllegalArgumentException If the radius is negative or above
+     * {@link #MAX_RADIUS}.
+     */
+    public static ChunkPregenerator start(GlowWorld world, CommandSender sender, int radius) {
+        ChunkPregenerator pregen = new ChunkPregenerator(world, sender, world.getSpawnLocation().getBlockX() >> 4, world.getSpawnLocation().getBlockZ() >> 4, radius, 0);
+        pregen.writeState();
+        return pregen;
+    }
+
+    /**
+     * Carry on with a run which was interrupted, if there was one.
+     * @param world The world.
+     * @return The pregenerator, or null if there was no run to resume.
+     */
+    public static ChunkPregenerator resume(GlowWorld world) {
+        File file = new File(world.getWorldFolder(), STATE_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        Properties props = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+            ChunkPregenerator pregen = new ChunkPregenerator(world, null,
+                    Integer.parseInt(props.getProperty("center-x")),
+                    Integer.parseInt(props.getProperty("center-z")),
+                    Integer.parseInt(props.getProperty("radius")),
+                    Integer.parseInt(props.getProperty("index")));
+            GlowServer.logger.info("Resuming pregeneration of " + world.getName() + " at " + pregen.getPercent() + "%");
+            return pregen;
+        } catch (IOException | RuntimeException e) {
+            GlowServer.logger.log(Level.WARNING, "Could not resume pregeneration of " + world.getName(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Do as much work as fits in the given time. Called on the world thread
+     * each tick.
+     * @param nanos The time which may be spent, in nanoseconds.
+     * @return Whether the run has finished.
+     */
+    public boolean pulse(long nanos) {
+        if (cancelled) {
+            stopped = true;
+            deleteState();
+            lock.clear();
+            return true;
+        }
+        if (stopped) {
+            return true;
+        }
+        long deadline = System.nanoTime() + nanos;
+
+        // keep the generation pool busy ahead of population, without
+        // outrunning eviction of the chunks which have been let go of
+        int limit = chunks.getChunkLimit();
+        while (requested < generateTotal && inFlight < MAX_IN_FLIGHT && (limit <= 0 || chunks.getResidentChunks() - (requested - released) < limit) && System.nanoTime() < deadline) {
+            request(requested++);
+        }
+
+        // populate chunks whose neighbours are in, a batch at a time so
+        // that the population scheduler can spread them over the pool
+        while (populated < total) {
+            long now = System.nanoTime();
+            if (now >= deadline) {
+                break;
+            }
+            // only take as many chunks as are likely to fit in the time left
+            int max = POPULATE_BATCH;
+            if (populateNanos > 0) {
+                max = (int) Math.max(1, Math.min(POPULATE_BATCH, (deadline - now) / populateNanos));
+            }
+            List<GlowChunk.Key> batch = new ArrayList<GlowChunk.Key>(max);
+            int end = populated;
+            while (end < total && batch.size() < max) {
+                int x = centerX + spiralX(end), z = centerZ + spiralZ(end);
+                if (!neighboursReady(x, z)) {
+                    break;
+                }
+                batch.add(new GlowChunk.Key(x, z));
+                end++;
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+            long start = System.nanoTime();
+            chunks.forcePopulation(batch);
+            long perChunk = (System.nanoTime() - start) / batch.size();
+            populateNanos = populateNanos == 0 ? perChunk : (3 * populateNanos + perChunk) / 4;
+            populated = end;
+        }
+
+        // let go of chunks which are no longer anyone's neighbour
+        while (released < requested && populated >= ringEnd(Math.min(ring(released) + 1, radius))) {
+            int x = centerX + spiralX(released), z = centerZ + spiralZ(released);
+            lock.release(new GlowChunk.Key(x, z));
+            chunks.saveChunkAsync(x, z);
+            released++;
+        }
+
+        if (populated >= total && released >= requested) {
+            finish();
+            return true;
+        }
+        if (++ticks % REPORT_TICKS == 0) {
+            report();
+            writeState();
+        }
+        return false;
+    }
+
+    /**
+     * Stop the run, keeping its progress so it is resumed next time the
+     * world is loaded.
+     */
+    public void stop() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        if (cancelled) {
+            deleteState();
+        } else {
+            writeState();
+        }
+        lock.clear();
+    }
+
+    /**
+     * Stop the run and forget its progress. The world thread lets go of
+     * its chunks on the next tick.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Get a line describing the progress of the run.
+     * @return The progress report.
+     */
+    public String getStatus() {
+        double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+        double rate = seconds > 0 ? (populated - startIndex) / seconds : 0;
+        String eta = rate > 0 ? formatTime((long) ((total - populated) / rate)) : "unknown";
+        return String.format("Pregenerating %s: %s%% (%d/%d chunks), %.1f chunks/s, ETA %s",
+                world.getName(), getPercent(), populated, total, rate, eta);
+    }
+
+    /**
+     * Get roughly how many chunks a run keeps locked at once.
+     * @param radius The radius of the run.
+     * @return The number of chunks.
+     */
+    public static int getWindowSize(int radius) {
+        return 24 * radius + 24 + MAX_IN_FLIGHT;
+    }
+
+    private String getPercent() {
+        return String.format("%.1f", 100.0 * populated / total);
+    }
+
+    private void request(int index) {
+        int x = centerX + spiralX(index), z = centerZ + spiralZ(index);
+        lock.acquire(new GlowChunk.Key(x, z));
+        inFlight++;
+        chunks.loadChunkAsync(x, z, true, new ChunkManager.LoadCallback() {
+            public void chunkLoaded(GlowChunk chunk, boolean loaded) {
+                inFlight--;
+            }
+        });
+    }
+
+    /**
+     * Load a chunk which has already been requested again in the background.
+     */
+    private void retry(int x, int z) {
+        inFlight++;
+        chunks.loadChunkAsync(x, z, true, new ChunkManager.LoadCallback() {
+            public void chunkLoaded(GlowChunk chunk, boolean loaded) {
+                inFlight--;
+            }
+        });
+    }
+
+    /**
+     * Check whether a chunk and its neighbours are loaded, so that
+     * populating it will not load or generate anything on the world thread.
+     * Neighbours whose request finished without loading them are requested
+     * again.
+     */
+    private boolean neighboursReady(int x, int z) {
+        boolean ready = true;
+        for (int x2 = x - 1; x2 <= x + 1; ++x2) {
+            for (int z2 = z - 1; z2 <= z + 1; ++z2) {
+                if (chunks.isChunkLoaded(x2, z2)) {
+                    continue;
+                }
+                ready = false;
+                if (!chunks.isChunkLoading(x2, z2) && spiralIndex(x2 - centerX, z2 - centerZ) < requested) {
+                    retry(x2, z2);
+                }
+            }
+        }
+        return ready;
+    }
+
+    private void report() {
+        String status = getStatus();
+        GlowServer.logger.info(status);
+        if (sender != null && !(sender instanceof ConsoleCommandSender)) {
+            sender.sendMessage(status);
+        }
+    }
+
+    private void finish() {
+        stopped = true;
+        deleteState();
+        lock.clear();
+        double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+        String message = String.format("Finished pregenerating %s: %d chunks in %s", world.getName(), populated - startIndex, formatTime((long) seconds));
+        GlowServer.logger.info(message);
+        if (sender != null && !(sender instanceof ConsoleCommandSender)) {
+            sender.sendMessage(message);
+        }
+    }
+
+    private void writeState() {
+        Properties props = new Properties();
+        props.setProperty("center-x", Integer.toString(centerX));
+        props.setProperty("center-z", Integer.toString(centerZ));
+        props.setProperty("radius", Integer.toString(radius));
+        // everything before the released index has been populated and saved
+        props.setProperty("index", Integer.toString(released));
+        try {
+            OutputStream out = new FileOutputStream(new File(world.getWorldFolder(), STATE_FILE));
+            try {
+                props.store(out, "Pregeneration progress");
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            GlowServer.logger.log(Level.WARNING, "Could not save pregeneration progress of " + world.getName(), e);
+        }
+    }
+
+    private void deleteState() {
+        File file = new File(world.getWorldFolder(), STATE_FILE);
+        if (file.exists() && !file.delete()) {
+            GlowServer.logger.warning("Could not delete " + file);
+        }
+    }
+
+    private static String formatTime(long seconds) {
+        if (seconds >= 3600) {
+            return (seconds / 3600) + "h " + (seconds / 60 % 60) + "m";
+        } else if (seconds >= 60) {
+            return (seconds / 60) + "m " + (seconds % 60) + "s";
+        }
+        return seconds + "s";
+    }
+
+    // ======== Spiral ordering ========
+
+    /**
+     * Get the ring a spiral index lies in, which is its distance from the
+     * center in chunks.
+     */
+    private static int ring(int index) {
+        int k = (int) ((Math.sqrt(index) + 1) / 2);
+        while ((2 * k + 1) * (2 * k + 1) <= index) {
+            ++k;
+        }
+        while (k > 0 && (2 * k - 1) * (2 * k - 1) > index) {
+            --k;
+        }
+        return k;
+    }
+
+    /**
+     * Get the spiral index just past the end of a ring.
+     */
+    private static int ringEnd(int ring) {
+        return (2 * ring + 1) * (2 * ring + 1);
+    }
+
+    private static int spiralX(int index) {
+        int k = ring(index);
+        if (k == 0) {
+            return 0;
+        }
+        int p = index - (2 * k - 1) * (2 * k - 1);
+        int off = p % (2 * k);
+        switch (p / (2 * k)) {
+            case 0: return k;
+            case 1: return k - 1 - off;
+            case 2: return -k;
+            default: return -k + 1 + off;
+        }
+    }
+
+    private static int spiralZ(int index) {
+        int k = ring(index);
+        if (k == 0) {
+            return 0;
+        }
+        int p = index - (2 * k - 1) * (2 * k - 1);
+        int off = p % (2 * k);
+        switch (p / (2 * k)) {
+            case 0: return -k + 1 + off;
+            case 1: return k;
+            case 2: return k - 1 - off;
+            default: return -k;
+        }
+    }
+
+    private static int spiralIndex(int dx, int dz) {
+        int k = Math.max(Math.abs(dx), Math.abs(dz));
+        if (k == 0) {
+            return 0;
+        }
+        int base = (2 * k - 1) * (2 * k - 1);
+        if (dx == k && dz > -k) {
+            return base + dz + k - 1;
+        } else if (dz == k) {
+            return base + 2 * k + k - 1 - dx;
+        } else if (dx == -k) {
+            return base + 4 * k + k - 1 - dz;
+        }
+        return base + 6 * k + dx + k - 1;
+    }
+
+}
@@ -3,13 +3,15 @@ package net.glowstone;
 import net.glowstone.block.BlockProperties;
 import net.glowstone.block.GlowBlock;
 import net.glowstone.block.GlowBlockState;
+import net.glowstone.block.TileEntityFactory;
 import net.glowstone.msg.CompressedChunkMessage;
 import net.glowstone.net.message.play.game.ChunkDataMessage;
+import net.glowstone.util.NibbleArray;
+import net.glowstone.util.PalettedArray;
 import org.bukkit.Chunk;
 import org.bukkit.World;
 import org.bukkit.entity.Entity;
 
-import java.lang.reflect.Constructor;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.logging.Level;
@@ -43,6 +45,17 @@ public final class GlowChunk implements Chunk {
             this.z = z;
         }
 
+        /**
+         * Packs the given chunk coordinates into a single long, suitable for
+         * use as a key in primitive maps.
+         * @param x The X coordinate.
+         * @param z The Z coordinate.
+         * @return The packed coordinates.
+         */
+        public static long toLong(int x, int z) {
+            return ((long) x << 32) | (z & 0xffffffffL);
+        }
+
         /**
          * Gets the X coordinate.
          * @return The X coordinate.
@@ -89,43 +102,106 @@ public final class GlowChunk implements Chunk {
     private static final int SEC_DEPTH = 16;
 
     /**
-     * A single cubic section of a chunk, with all data.
+     * Which block types have tile entities, indexed by type.
+     */
+    private static final boolean[] TILE_ENTITY_TYPES = new boolean[256];
+
+    static {
+        for (int type = 0; type < TILE_ENTITY_TYPES.length; ++type) {
+            BlockProperties properties = BlockProperties.get(type);
+            TILE_ENTITY_TYPES[type] = properties != null && properties.hasTileEntity();
+        }
+    }
+
+    /**
+     * A single cubic section of a chunk, with all data. Block types are kept
+     * in a palette while the section holds few distinct types, and metadata
+     * and light take no space while they are uniform, so homogeneous
+     * sections cost very little memory.
+     * <p>
+     * Snapshots share sections with the chunk rather than copying them. Once
+     * a section has been shared it must not be modified; the chunk replaces
+     * it with a {@link #copy()} before the next change instead.
+     * <p>
+     * In off-heap mode, new sections keep their data in direct buffers
+     * outside the Java heap, so that large numbers of loaded chunks do not
+     * grow the old generation. Copies made after a snapshot are always kept
+     * on the heap, since direct buffers are only freed once the garbage
+     * collector gets round to them.
      */
     public static final class ChunkSection {
         private static final int ARRAY_SIZE = WIDTH * HEIGHT * SEC_DEPTH;
 
+        /**
+         * Whether new sections keep their data outside the Java heap.
+         */
+        private static volatile boolean offHeap = false;
+
         // these probably should be made non-public
-        public final byte[] types;
-        public final byte[] metaData;
-        public final byte[] skyLight;
-        public final byte[] blockLight;
+        public final PalettedArray types;
+        public final NibbleArray metaData;
+        public final NibbleArray skyLight;
+        public final NibbleArray blockLight;
+
+        /**
+         * Whether this section may be referenced by a snapshot.
+         */
+        private volatile boolean shared;
 
         /**
          * Create a new, empty ChunkSection.
          */
         public ChunkSection() {
-            types = new byte[ARRAY_SIZE];
-            metaData = new byte[ARRAY_SIZE];
-            skyLight = new byte[ARRAY_SIZE];
-            blockLight = new byte[ARRAY_SIZE];
-            Arrays.fill(skyLight, (byte) 0xf);
+            this(new PalettedArray(ARRAY_SIZE, 0, offHeap));
+        }
+
+        /**
+         * Create a ChunkSection with the specified block types, with zero
+         * metadata, full sky light and no block light.
+         */
+        public ChunkSection(byte[] types) {
+            this(new PalettedArray(types, offHeap));
+        }
+
+        private ChunkSection(PalettedArray types) {
+            this(types, new NibbleArray(ARRAY_SIZE), new NibbleArray(ARRAY_SIZE, (byte) 0xf), new NibbleArray(ARRAY_SIZE));
+        }
+
+        /**
+         * Check whether new sections keep their data outside the Java heap.
+         * @return Whether off-heap mode is enabled.
+         */
+        public static boolean isOffHeap() {
+            return offHeap;
         }
 
         /**
-         * Create a ChunkSection with the specified chunk data.
+         * Set whether new sections keep their data outside the Java heap.
+         * Existing sections keep their current storage.
+         * @param value Whether to enable off-heap mode.
          */
-        public ChunkSection(byte[] types, byte[] metaData, byte[] skyLight, byte[] blockLight) {
-            if (types.length != ARRAY_SIZE || metaData.length != ARRAY_SIZE || skyLight.length != ARRAY_SIZE || blockLight.length != ARRAY_SIZE) {
-                throw new IllegalArgumentException("An array length was not " + ARRAY_SIZE + ": " + types.length + " " + metaData.length + " " + skyLight.length + " " + blockLight.length);
+        public static void setOffHeap(boolean value) {
+            offHeap = value;
+        }
+
+        /**
+         * Create a ChunkSection with the specified chunk data. The arrays are
+         * used directly rather than copied, except in off-heap mode, where
+         * their data is copied out of the heap.
+         */
+        public ChunkSection(byte[] types, NibbleArray metaData, NibbleArray skyLight, NibbleArray blockLight) {
+            this(new PalettedArray(types, offHeap), metaData, skyLight, blockLight);
+        }
+
+        private ChunkSection(PalettedArray types, NibbleArray metaData, NibbleArray skyLight, NibbleArray blockLight) {
+            if (types.size() != ARRAY_SIZE || metaData.size() != ARRAY_SIZE || skyLight.size() != ARRAY_SIZE || blockLight.size() != ARRAY_SIZE) {
+                throw new IllegalArgumentException("An array length was not " + ARRAY_SIZE + ": " + types.size() + " " + metaData.size() + " " + skyLight.size() + " " + blockLight.size());
             }
+            boolean direct = types.isDirect();
             this.types = types;
-            this.metaData = metaData;
-            this.skyLight = skyLight;
-            this.blockLight = blockLight;
-            /*System.arraycopy(types, 0, this.types, 0, ARRAY_SIZE);
-            System.arraycopy(metaData, 0, this.metaData, 0, ARRAY_SIZE);
-            System.arraycopy(skyLight, 0, this.skyLight, 0, ARRAY_SIZE);
-            System.arraycopy(blockLight, 0, this.blockLight, 0, ARRAY_SIZE);*/
+            this.metaData = metaData.withStorage(direct);
+            this.skyLight = skyLight.withStorage(direct);
+            this.blockLight = blockLight.withStorage(direct);
         }
 
         public int index(int x, int y, int z) {
@@ -136,14 +212,38 @@ public final class GlowChunk implements Chunk {
         }
 
         public boolean isEmpty() {
-            for (byte type : types) {
-                if (type != 0) return false;
-            }
-            return true;
+            return types.nonZeroCount() == 0;
         }
 
+        /**
+         * Check whether this section may be referenced by a snapshot, and so
+         * must be copied before it is modified.
+         * @return Whether this section is shared.
+         */
+        public boolean isShared() {
+            return shared;
+        }
+
+        /**
+         * Get a view of this section for a snapshot. No data is copied: the
+         * section is marked as shared and returned as-is.
+         * @return This section.
+         */
         public ChunkSection snapshot() {
-            return new ChunkSection(types.clone(), metaData.clone(), skyLight.clone(), blockLight.clone());
+            shared = true;
+            return this;
+        }
+
+        /**
+         * Create a deep copy of this section which is not shared, with its
+         * data on the Java heap.
+         * @return The new ChunkSection.
+         */
+        public ChunkSection copy() {
+            if (types.isDirect()) {
+                return new ChunkSection(types.withStorage(false), metaData.withStorage(false), skyLight.withStorage(false), blockLight.withStorage(false));
+            }
+            return new ChunkSection(types.snapshot(), metaData.snapshot(), skyLight.snapshot(), blockLight.snapshot());
         }
     }
     
@@ -161,6 +261,12 @@ public final class GlowChunk implements Chunk {
      * The array of chunk sections this chunk contains, or null if it is unloaded.
      */
     private ChunkSection[] sections;
+
+    /**
+     * The height of the highest non-air block in each column plus one,
+     * indexed by (z * WIDTH + x), or null if the chunk is unloaded.
+     */
+    private int[] heightMap;
     
     /**
      * The tile entities that reside in this chunk.
@@ -173,6 +279,35 @@ public final class GlowChunk implements Chunk {
      */
     private boolean populated = false;
 
+    /**
+     * The tick on which this chunk was last looked up, used to choose which
+     * chunks to evict first.
+     */
+    private volatile int lastUsed;
+
+    /**
+     * Whether this chunk has been dropped from its ChunkManager, in which
+     * case a newer object may hold the chunk and this one is never loaded.
+     */
+    private volatile boolean evicted = false;
+
+    /**
+     * The number of modifications made to this chunk, so saves can tell
+     * whether it has changed since it was last written.
+     */
+    private volatile int modCount = 0;
+
+    /**
+     * The modification count as of the last save or load.
+     */
+    private volatile int savedModCount = 0;
+
+    /**
+     * Held while a saved copy of this chunk is written, so that an older
+     * copy is never written over a newer one.
+     */
+    private final Object saveLock = new Object();
+
     /**
      * Creates a new chunk with a specified X and Z coordinate.
      * @param x The X coordinate.
@@ -215,7 +350,29 @@ public final class GlowChunk implements Chunk {
     }
 
     public GlowChunkSnapshot getChunkSnapshot(boolean includeMaxblocky, boolean includeBiome, boolean includeBiomeTempRain) {
-        return new GlowChunkSnapshot(x, z, world, sections, includeMaxblocky, includeBiome, includeBiomeTempRain);
+        // mark the sections as shared while holding the lock, so that a
+        // section being copied for writing is not shared at the same time
+        ChunkSection[] shared = null;
+        int[] height = null;
+        synchronized (this) {
+            ChunkSection[] sections = this.sections;
+            if (sections != null) {
+                shared = new ChunkSection[sections.length];
+                for (int i = 0; i < sections.length; ++i) {
+                    if (sections[i] != null) {
+                        shared[i] = sections[i].snapshot();
+                    }
+                }
+            }
+            int[] heightMap = this.heightMap;
+            if (includeMaxblocky && heightMap != null) {
+                height = heightMap.clone();
+            }
+        }
+        if (includeMaxblocky && height == null) {
+            height = new int[WIDTH * HEIGHT];
+        }
+        return new GlowChunkSnapshot(x, z, world, shared, height, includeBiome, includeBiomeTempRain);
     }
     
     /**
@@ -232,10 +389,76 @@ public final class GlowChunk implements Chunk {
      */
     public void setPopulated(boolean populated) {
         this.populated = populated;
+        markDirty();
     }
     
     // ======== Helper Functions ========
 
+    /**
+     * Get the tick on which this chunk was last looked up.
+     * @return The tick this chunk was last used.
+     */
+    int getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Record the tick on which this chunk was looked up.
+     * @param tick The current tick.
+     */
+    void setLastUsed(int tick) {
+        lastUsed = tick;
+    }
+
+    /**
+     * Check whether this chunk has changed since it was last saved or loaded.
+     * @return Whether the chunk needs saving.
+     */
+    public boolean isDirty() {
+        return modCount != savedModCount;
+    }
+
+    /**
+     * Record that this chunk has changed and needs saving. Changes made
+     * through this class are recorded automatically.
+     */
+    public void markDirty() {
+        modCount++;
+    }
+
+    /**
+     * Get the number of modifications made to this chunk so far.
+     * @return The modification count.
+     */
+    public int getModCount() {
+        return modCount;
+    }
+
+    /**
+     * Record that this chunk has been saved or loaded as of the given
+     * modification count.
+     * @param modCount The modification count the stored copy matches.
+     */
+    public void markSaved(int modCount) {
+        savedModCount = modCount;
+    }
+
+    /**
+     * Get the modification count which the stored copy matches.
+     * @return The saved modification count.
+     */
+    int getSavedModCount() {
+        return savedModCount;
+    }
+
+    /**
+     * Get the lock held while writing a saved copy of this chunk.
+     * @return The save lock.
+     */
+    Object getSaveLock() {
+        return saveLock;
+    }
+
     public boolean isLoaded() {
         return sections != null;
     }
@@ -245,7 +468,16 @@ public final class GlowChunk implements Chunk {
     }
 
     public boolean load(boolean generate) {
-        return isLoaded() || world.getChunkManager().loadChunk(x, z, generate);
+        // a stale object must not load the chunk a second time
+        return isLoaded() || (!evicted && world.getChunkManager().loadChunk(x, z, generate));
+    }
+
+    /**
+     * Record that this chunk has been dropped from its ChunkManager. It
+     * reads as empty and ignores writes from then on.
+     */
+    void markEvicted() {
+        evicted = true;
     }
 
     public boolean unload() {
@@ -265,11 +497,15 @@ public final class GlowChunk implements Chunk {
             return false;
         }
         
-        if (save && !world.getChunkManager().forceSave(x, z)) {
+        if (save && isDirty() && !world.getChunkManager().forceSave(x, z)) {
             return false;
         }
 
-        sections = null;
+        synchronized (this) {
+            sections = null;
+            heightMap = null;
+        }
+        world.getChunkManager().chunkUnloaded();
         return true;
     }
 
@@ -278,6 +514,17 @@ public final class GlowChunk implements Chunk {
      * @param initSections The ChunkSections to use.
      */
     public void initializeSections(ChunkSection[] initSections) {
+        initializeSections(initSections, null);
+    }
+
+    /**
+     * Initialize this chunk from the given sections and a previously stored
+     * heightmap. The heightmap is sanity-checked against the sections and
+     * any column which does not match is recalculated.
+     * @param initSections The ChunkSections to use.
+     * @param storedHeightMap The stored heightmap, or null to calculate it.
+     */
+    public void initializeSections(ChunkSection[] initSections, int[] storedHeightMap) {
         if (isLoaded()) {
             GlowServer.logger.log(Level.SEVERE, "Tried to initialize already loaded chunk ({0},{1})", new Object[]{x, z});
             new Throwable().printStackTrace();
@@ -287,16 +534,33 @@ public final class GlowChunk implements Chunk {
 
         sections = new ChunkSection[DEPTH / SEC_DEPTH];
         System.arraycopy(initSections, 0, this.sections, 0, Math.min(this.sections.length, initSections.length));
+        markDirty();
+        world.getChunkManager().chunkLoaded();
+
+        // heightmap initialization
+        heightMap = new int[WIDTH * HEIGHT];
+        boolean useStored = storedHeightMap != null && storedHeightMap.length == heightMap.length;
+        for (int cx = 0; cx < WIDTH; ++cx) {
+            for (int cz = 0; cz < HEIGHT; ++cz) {
+                int height = useStored ? storedHeightMap[cz * WIDTH + cx] : -1;
+                if (height < 0 || height > DEPTH
+                        || (height > 0 && getType(cx, cz, height - 1) == 0)
+                        || (height < DEPTH && getType(cx, cz, height) != 0)) {
+                    height = findHeight(cx, cz, DEPTH);
+                }
+                heightMap[cz * WIDTH + cx] = height;
+            }
+        }
 
-        // tile entity initialization
+        // tile entity initialization, skipping sections without tile types
         for (int i = 0; i < sections.length; ++i) {
-            if (sections[i] == null) continue;
-            int by = 16 * i;
-            for (int cx = 0; cx < WIDTH; ++cx) {
-                for (int cz = 0; cz < HEIGHT; ++cz) {
-                    for (int cy = by; cy < by + 16; ++cy) {
-                        createEntity(cx, cy, cz, getType(cx, cz, cy));
-                    }
+            ChunkSection section = sections[i];
+            if (section == null || !section.types.containsAny(TILE_ENTITY_TYPES)) continue;
+            int by = SEC_DEPTH * i;
+            for (int index = 0; index < ChunkSection.ARRAY_SIZE; ++index) {
+                int type = section.types.get(index);
+                if (TILE_ENTITY_TYPES[type]) {
+                    createEntity(index & 0xf, by + (index >> 8), (index >> 4) & 0xf, type);
                 }
             }
         }
@@ -306,18 +570,14 @@ public final class GlowChunk implements Chunk {
      * If needed, create a new tile entity at the given location.
      */
     private void createEntity(int cx, int cy, int cz, int type) {
-        BlockProperties properties = BlockProperties.get(type);
-        if (properties == null) return;
-
-        Class<? extends GlowBlockState> clazz = properties.getEntityClass();
-        if (clazz == null || clazz == GlowBlockState.class) return;
+        if (!TILE_ENTITY_TYPES[type]) return;
 
+        TileEntityFactory factory = BlockProperties.get(type).getEntityFactory();
         try {
-            Constructor<? extends GlowBlockState> constructor = clazz.getConstructor(GlowBlock.class);
-            GlowBlockState state = constructor.newInstance(getBlock(cx, cy, cz));
+            GlowBlockState state = factory.createEntity(getBlock(cx, cy, cz));
             tileEntities.put(coordToIndex(cx, cz, cy), state);
-        } catch (Exception ex) {
-            GlowServer.logger.log(Level.SEVERE, "Unable to initialize tile entity {0}: {1}", new Object[]{clazz.getName(), ex.getMessage()});
+        } catch (IllegalArgumentException ex) {
+            GlowServer.logger.log(Level.SEVERE, "Unable to initialize tile entity for type {0}: {1}", new Object[]{type, ex.getMessage()});
             ex.printStackTrace();
         }
     }
@@ -331,11 +591,48 @@ public final class GlowChunk implements Chunk {
      */
     private ChunkSection getSection(int y) {
         int idx = y >> 4;
-        if (y < 0 || y >= DEPTH || !load() || idx >= sections.length) {
+        if (y < 0 || y >= DEPTH || !load()) {
+            return null;
+        }
+        // a chunk which has been evicted from its ChunkManager is never loaded
+        ChunkSection[] sections = this.sections;
+        if (sections == null || idx >= sections.length) {
             return null;
         }
         return sections[idx];
     }
+
+    /**
+     * Attempt to get the ChunkSection at the specified height for writing.
+     * If the section is shared with a snapshot it is first replaced in this
+     * chunk by a private copy.
+     * <p>
+     * Chunks may be written from the generation pool as well as the world
+     * thread, so the caller must hold this chunk's lock until it has
+     * finished writing to the section. Snapshots mark sections as shared
+     * under the same lock, so a section is never shared while a write to
+     * it is in progress.
+     * @param y the y value.
+     * @param create Whether to create the section if it is empty.
+     * @return The ChunkSection, or null if it is empty or the chunk is not loaded.
+     */
+    private ChunkSection getWritableSection(int y, boolean create) {
+        ChunkSection[] sections = this.sections;
+        if (y < 0 || y >= DEPTH || sections == null || (y >> 4) >= sections.length) {
+            return null;
+        }
+        ChunkSection section = sections[y >> 4];
+        if (section == null) {
+            if (create) {
+                section = new ChunkSection();
+                sections[y >> 4] = section;
+            }
+        } else if (section.isShared()) {
+            section = section.copy();
+            sections[y >> 4] = section;
+        }
+        return section;
+    }
     
     /**
      * Attempt to get the tile entity located at the given coordinates.
@@ -359,7 +656,7 @@ public final class GlowChunk implements Chunk {
      */
     public int getType(int x, int z, int y) {
         ChunkSection section = getSection(y);
-        return section == null ? 0 : (section.types[section.index(x, y, z)] & 0xff);
+        return section == null ? 0 : section.types.get(section.index(x, y, z));
     }
 
     /**
@@ -373,33 +670,93 @@ public final class GlowChunk implements Chunk {
         if (type < 0 || type >= 256)
             throw new IllegalArgumentException("Block type out of range: " + type);
 
-        ChunkSection section = getSection(y);
-        if (section == null) {
-            if (type == 0) {
-                // don't need to create chunk for air
+        if (!load()) {
+            return;
+        }
+        synchronized (this) {
+            // don't need to create a section for air
+            ChunkSection section = getWritableSection(y, type != 0);
+            if (section == null) {
                 return;
-            } else {
-                section = new ChunkSection();
             }
-        }
 
-        // destroy any tile entity there
-        int tileEntityIndex = coordToIndex(x, z, y);
-        if (tileEntities.containsKey(tileEntityIndex)) {
-            tileEntities.remove(tileEntityIndex).destroy();
-        }
+            markDirty();
 
-        // update the type
-        section.types[section.index(x, y, z)] = (byte) type;
+            // destroy any tile entity there
+            int tileEntityIndex = coordToIndex(x, z, y);
+            if (tileEntities.containsKey(tileEntityIndex)) {
+                tileEntities.remove(tileEntityIndex).destroy();
+            }
 
-        if (type == 0 && section.isEmpty()) {
-            // destroy the empty section
-            sections[y / SEC_DEPTH] = null;
-            return;
+            // update the type
+            section.types.set(section.index(x, y, z), type);
+
+            // update the heightmap
+            int[] heightMap = this.heightMap;
+            if (heightMap != null) {
+                int column = z * WIDTH + x;
+                if (type != 0 && y >= heightMap[column]) {
+                    heightMap[column] = y + 1;
+                } else if (type == 0 && y == heightMap[column] - 1) {
+                    heightMap[column] = findHeight(x, z, y);
+                }
+            }
+
+            if (type == 0 && section.isEmpty()) {
+                // destroy the empty section
+                sections[y / SEC_DEPTH] = null;
+                return;
+            }
+
+            // create a new tile entity if we need
+            createEntity(x, y, z, type);
+        }
+    }
+
+    /**
+     * Gets the height of the highest non-air block in a column of this chunk
+     * plus one, or zero if the column is empty.
+     * @param x The X coordinate.
+     * @param z The Z coordinate.
+     * @return The height of the column.
+     */
+    public int getHeight(int x, int z) {
+        if (x < 0 || z < 0 || x >= WIDTH || z >= HEIGHT) {
+            throw new IndexOutOfBoundsException("Coords (x=" + x + ",z=" + z + ") out of chunk bounds");
         }
+        if (!load()) {
+            return 0;
+        }
+        int[] heightMap = this.heightMap;
+        return heightMap == null ? 0 : heightMap[z * WIDTH + x];
+    }
 
-        // create a new tile entity if we need
-        createEntity(x, y, z, type);
+    /**
+     * Scan a column downwards for the highest non-air block.
+     * @param x The X coordinate.
+     * @param z The Z coordinate.
+     * @param top The height to start scanning below.
+     * @return The height of the highest non-air block plus one, or zero.
+     */
+    private int findHeight(int x, int z, int top) {
+        ChunkSection[] sections = this.sections;
+        if (sections == null) {
+            return 0;
+        }
+        int y = top - 1;
+        while (y >= 0) {
+            ChunkSection section = sections[y >> 4];
+            if (section == null || section.isEmpty()) {
+                // skip straight to the section below
+                y = (y & ~0xf) - 1;
+                continue;
+            }
+            if (section.types.get(section.index(x, y, z)) != 0) {
+                return y + 1;
+            }
+            --y;
+        }
+        return 0;
     }
 
     /**
@@ -411,7 +768,7 @@ public final class GlowChunk implements Chunk {
      */
     public int getMetaData(int x, int z, int y) {
         ChunkSection section = getSection(y);
-        return section == null ? 0 : section.metaData[section.index(x, y, z)];
+        return section == null ? 0 : section.metaData.get(section.index(x, y, z));
     }
 
     /**
@@ -424,9 +781,13 @@ public final class GlowChunk implements Chunk {
     public void setMetaData(int x, int z, int y, int metaData) {
         if (metaData < 0 || metaData >= 16)
             throw new IllegalArgumentException("Metadata out of range: " + metaData);
-        ChunkSection section = getSection(y);
-        if (section == null) return;  // can't set metadata on an empty section
-        section.metaData[section.index(x, y, z)] = (byte) metaData;
+        if (!load()) return;
+        synchronized (this) {
+            ChunkSection section = getWritableSection(y, false);
+            if (section == null) return;  // can't set metadata on an empty section
+            markDirty();
+            section.metaData.set(section.index(x, y, z), (byte) metaData);
+        }
     }
 
     /**
@@ -438,7 +799,7 @@ public final class GlowChunk implements Chunk {
      */
     public byte getSkyLight(int x, int z, int y) {
         ChunkSection section = getSection(y);
-        return section == null ? 0 : section.skyLight[section.index(x, y, z)];
+        return section == null ? 0 : section.skyLight.get(section.index(x, y, z));
     }
 
     /**
@@ -449,9 +810,13 @@ public final class GlowChunk implements Chunk {
      * @param skyLight The sky light level.
      */
     public void setSkyLight(int x, int z, int y, int skyLight) {
-        ChunkSection section = getSection(y);
-        if (section == null) return;  // can't set light on an empty section
-        section.skyLight[section.index(x, y, z)] = (byte) skyLight;
+        if (!load()) return;
+        synchronized (this) {
+            ChunkSection section = getWritableSection(y, false);
+            if (section == null) return;  // can't set light on an empty section
+            markDirty();
+            section.skyLight.set(section.index(x, y, z), (byte) skyLight);
+        }
     }
 
     /**
@@ -463,7 +828,7 @@ public final class GlowChunk implements Chunk {
      */
     public byte getBlockLight(int x, int z, int y) {
         ChunkSection section = getSection(y);
-        return section == null ? 0 : section.blockLight[section.index(x, y, z)];
+        return section == null ? 0 : section.blockLight.get(section.index(x, y, z));
     }
 
     /**
@@ -474,9 +839,13 @@ public final class GlowChunk implements Chunk {
      * @param blockLight The block light level.
      */
     public void setBlockLight(int x, int z, int y, int blockLight) {
-        ChunkSection section = getSection(y);
-        if (section == null) return;  // can't set light on an empty section
-        section.blockLight[section.index(x, y, z)] = (byte) blockLight;
+        if (!load()) return;
+        synchronized (this) {
+            ChunkSection section = getWritableSection(y, false);
+            if (section == null) return;  // can't set light on an empty section
+            markDirty();
+            section.blockLight.set(section.index(x, y, z), (byte) blockLight);
+        }
     }
     
     // ======== Helper functions ========
@@ -582,41 +951,25 @@ public final class GlowChunk implements Chunk {
         pos = 0;
 
         for (ChunkSection sec : sendSections) {
-            System.arraycopy(sec.types, 0, tileData, pos, sec.types.length);
-            pos += sec.types.length;
+            sec.types.copyTo(tileData, pos);
+            pos += sec.types.size();
         }
 
+        // the nibble arrays are already packed the same way the protocol expects
         for (ChunkSection sec : sendSections) {
-            byte[] metaData = sec.metaData;
-            for (int i = 0; i < metaData.length; i += 2) {
-                byte meta1 = metaData[i];
-                byte meta2 = metaData[i + 1];
-                tileData[pos++] = (byte) ((meta2 << 4) | meta1);
-            }
+            sec.metaData.copyTo(tileData, pos);
+            pos += sec.metaData.byteSize();
         }
 
         for (ChunkSection sec : sendSections) {
-            byte[] blockLight = sec.blockLight;
-            for (int i = 0; i < blockLight.length; i += 2) {
-                byte light1 = blockLight[i];
-                byte light2 = blockLight[i + 1];
-                tileData[pos++] = (byte) ((light2 << 4) | light1);
-                if (tileData[pos - 1] != 0x00) {
-                    System.out.println(this + ": blocklight was really " + tileData[pos - 1]);
-                }
-            }
+            sec.blockLight.copyTo(tileData, pos);
+            pos += sec.blockLight.byteSize();
         }
 
-        for (ChunkSection sec : sendSections) {
-            if (!skylight) break;
-            byte[] skyLight = sec.skyLight;
-            for (int i = 0; i < skyLight.length; i += 2) {
-                byte light1 = skyLight[i];
-                byte light2 = skyLight[i + 1];
-                tileData[pos++] = (byte) ((light2 << 4) | light1);
-                if ((tileData[pos - 1] & 0xFF) != 0xFF) {
-                    System.out.println(this + ": skylight was only " + tileData[pos - 1]);
-                }
+        if (skylight) {
+            for (ChunkSection sec : sendSections) {
+                sec.skyLight.copyTo(tileData, pos);
+                pos += sec.skyLight.byteSize();
             }
         }
 
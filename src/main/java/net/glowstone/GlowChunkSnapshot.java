@@ -21,7 +21,7 @@ public class GlowChunkSnapshot implements ChunkSnapshot {
     private final double[] temp, humid;
     private final Biome[] biomes;
 
-    public GlowChunkSnapshot(int x, int z, World world, ChunkSection[] sections, boolean svHeight, boolean svBiome, boolean svTemp) {
+    public GlowChunkSnapshot(int x, int z, World world, ChunkSection[] sections, int[] height, boolean svBiome, boolean svTemp) {
         this.x = x;
         this.z = z;
         this.world = world.getName();
@@ -35,17 +35,9 @@ public class GlowChunkSnapshot implements ChunkSnapshot {
             }
         }
 
+        this.height = height;
+
         final int baseX = x << 4, baseZ = z << 4;
-        if (svHeight) {
-            height = new int[16 * 16];
-            for (int xx = 0; xx < 16; ++xx) {
-                for (int zz = 0; zz < 16; ++zz) {
-                    height[coordToIndex(xx, zz)] = world.getHighestBlockYAt(baseX + xx, baseZ + zz);
-                }
-            }
-        } else {
-            height = null;
-        }
 
         if (svBiome) {
             biomes = new Biome[16 * 16];
@@ -81,7 +73,8 @@ public class GlowChunkSnapshot implements ChunkSnapshot {
     }
 
     /**
-     * Get the ChunkSection array backing this snapshot. In general, it should not be modified.
+     * Get the ChunkSection array backing this snapshot. The sections are
+     * shared with the live chunk and must not be modified.
      * @return The array of ChunkSections.
      */
     public ChunkSection[] getRawSections() {
@@ -118,22 +111,22 @@ public class GlowChunkSnapshot implements ChunkSnapshot {
 
     public int getBlockTypeId(int x, int y, int z) {
         ChunkSection section = getSection(y);
-        return section == null ? 0 : (section.types[section.index(x, y, z)] & 0xff);
+        return section == null ? 0 : section.types.get(section.index(x, y, z));
     }
 
     public int getBlockData(int x, int y, int z) {
         ChunkSection section = getSection(y);
-        return section == null ? 0 : section.metaData[section.index(x, y, z)];
+        return section == null ? 0 : section.metaData.get(section.index(x, y, z));
     }
 
     public int getBlockSkyLight(int x, int y, int z) {
         ChunkSection section = getSection(y);
-        return section == null ? 0 : section.skyLight[section.index(x, y, z)];
+        return section == null ? 0 : section.skyLight.get(section.index(x, y, z));
     }
 
     public int getBlockEmittedLight(int x, int y, int z) {
         ChunkSection section = getSection(y);
-        return section == null ? 0 : section.blockLight[section.index(x, y, z)];
+        return section == null ? 0 : section.blockLight.get(section.index(x, y, z));
     }
 
     public int getHighestBlockYAt(int x, int z) {
@@ -162,7 +155,7 @@ public class GlowChunkSnapshot implements ChunkSnapshot {
     public static class EmptySnapshot extends GlowChunkSnapshot {
         
         public EmptySnapshot(int x, int z, World world, boolean svBiome, boolean svTemp) {
-            super(x, z, world, null, false, svBiome, svTemp);
+            super(x, z, world, null, null, svBiome, svTemp);
         }
 
         @Override
@@ -2,9 +2,14 @@ package net.glowstone;
 
 import com.flowpowered.networking.NetworkServer;
 import net.glowstone.command.ColorCommand;
+import net.glowstone.command.CompactCommand;
+import net.glowstone.command.PregenCommand;
 import net.glowstone.inventory.CraftingManager;
 import net.glowstone.inventory.GlowItemFactory;
 import net.glowstone.io.StorageQueue;
+import net.glowstone.io.anvil.AnvilChunkIoService;
+import net.glowstone.io.anvil.RegionFile;
+import net.glowstone.io.anvil.RegionFileCache;
 import net.glowstone.map.GlowMapView;
 import net.glowstone.net.GlowNetworkServer;
 import net.glowstone.net.SessionRegistry;
@@ -39,6 +44,12 @@ import java.net.SocketAddress;
 import java.security.KeyPair;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -224,12 +235,51 @@ public final class GlowServer implements Server {
      */
     private GlowServerIcon defaultIcon;
 
+    /**
+     * The thread pool used to read and decode chunks in the background.
+     */
+    private final ExecutorService chunkIoExecutor;
+
+    /**
+     * The pool used to serialize, compress and write saved chunks.
+     */
+    private final ForkJoinPool chunkSavePool = new ForkJoinPool();
+
+    /**
+     * The thread pool used to generate new chunks in the background.
+     */
+    private final ExecutorService generationExecutor;
+
     /**
      * Creates a new server.
      */
     public GlowServer() {
         Bukkit.setServer(this);
         loadConfig();
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        chunkIoExecutor = Executors.newFixedThreadPool(Math.max(1, config.getInt(ServerConfig.Key.CHUNK_IO_THREADS)), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Chunk I/O Thread " + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // by default leave one core for the main and world threads
+        int generationThreads = config.getInt(ServerConfig.Key.GENERATION_THREADS);
+        if (generationThreads <= 0) {
+            generationThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        }
+        final AtomicInteger generationCount = new AtomicInteger();
+        generationExecutor = Executors.newFixedThreadPool(generationThreads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Chunk Generation Thread " + generationCount.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
     }
 
     /**
@@ -325,6 +375,14 @@ public final class GlowServer implements Server {
         }
 
         // Stop scheduler, storage queue, and console
+        chunkIoExecutor.shutdown();
+        generationExecutor.shutdown();
+        chunkSavePool.shutdown();
+        try {
+            chunkSavePool.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            logger.warning("Interrupted while waiting for chunks to be saved");
+        }
         storeQueue.end();
         scheduler.stop();
         consoleManager.stop();
@@ -346,6 +404,10 @@ public final class GlowServer implements Server {
         craftingManager.initialize();
 
         // special handling
+        GlowChunk.ChunkSection.setOffHeap(config.getBoolean(ServerConfig.Key.OFF_HEAP_CHUNKS));
+        RegionFile.setMemoryMapped(config.getBoolean(ServerConfig.Key.REGION_MMAP));
+        RegionFileCache.setDefaultLimit(config.getInt(ServerConfig.Key.REGION_FILE_LIMIT));
+        AnvilChunkIoService.setJournaled(config.getBoolean(ServerConfig.Key.CHUNK_JOURNAL));
         warnState = Warning.WarningState.value(config.getString(ServerConfig.Key.WARNING_STATE));
         try {
             defaultGameMode = GameMode.valueOf(GameMode.class, config.getString(ServerConfig.Key.GAMEMODE));
@@ -373,6 +435,8 @@ public final class GlowServer implements Server {
         commandMap.clearCommands();
         commandMap.setFallbackCommands();
         commandMap.register("glowstone", new ColorCommand("colors"));
+        commandMap.register("glowstone", new CompactCommand("compact"));
+        commandMap.register("glowstone", new PregenCommand("pregen"));
 
         File folder = new File(config.getString(ServerConfig.Key.PLUGIN_FOLDER));
         if (!folder.isDirectory() && !folder.mkdirs()) {
@@ -1049,6 +1113,71 @@ public final class GlowServer implements Server {
         return config.getInt(ServerConfig.Key.VIEW_DISTANCE);
     }
 
+    /**
+     * Get the thread pool used to read and decode chunks in the background.
+     * @return The chunk I/O executor.
+     */
+    public ExecutorService getChunkIoExecutor() {
+        return chunkIoExecutor;
+    }
+
+    /**
+     * Get the thread pool used to generate new chunks in the background.
+     * @return The generation executor.
+     */
+    public ExecutorService getGenerationExecutor() {
+        return generationExecutor;
+    }
+
+    /**
+     * Get the pool used to serialize, compress and write saved chunks.
+     * @return The chunk save pool.
+     */
+    public ForkJoinPool getChunkSavePool() {
+        return chunkSavePool;
+    }
+
+    /**
+     * Get the number of loaded chunks each world may hold before unused
+     * chunks are evicted regardless of age.
+     * @return The chunk limit, or 0 for no limit.
+     */
+    public int getChunkLimit() {
+        return config.getInt(ServerConfig.Key.CHUNK_LIMIT);
+    }
+
+    /**
+     * Get how many ticks an unused chunk stays loaded.
+     * @return The unload delay in ticks.
+     */
+    public int getChunkUnloadDelay() {
+        return config.getInt(ServerConfig.Key.CHUNK_UNLOAD_DELAY);
+    }
+
+    /**
+     * Get how many milliseconds each world may spend unloading chunks per tick.
+     * @return The unload time in milliseconds.
+     */
+    public int getChunkUnloadTime() {
+        return config.getInt(ServerConfig.Key.CHUNK_UNLOAD_TIME);
+    }
+
+    /**
+     * Get how many milliseconds each world may spend saving changed chunks per tick.
+     * @return The save time in milliseconds.
+     */
+    public int getChunkSaveTime() {
+        return config.getInt(ServerConfig.Key.CHUNK_SAVE_TIME);
+    }
+
+    /**
+     * Get how many milliseconds each world may spend pregenerating chunks per tick.
+     * @return The pregeneration time in milliseconds.
+     */
+    public int getPregenTime() {
+        return config.getInt(ServerConfig.Key.PREGEN_TIME);
+    }
+
     public String getMotd() {
         return config.getString(ServerConfig.Key.MOTD);
     }
@@ -7,12 +7,12 @@ import net.glowstone.io.WorldMetadataService;
 import net.glowstone.io.WorldMetadataService.WorldFinalValues;
 import net.glowstone.io.WorldStorageProvider;
 import net.glowstone.io.anvil.AnvilWorldStorageProvider;
-import net.glowstone.util.WeakValueMap;
 import net.glowstone.net.message.play.game.StateChangeMessage;
 import net.glowstone.net.message.play.game.TimeMessage;
 import org.bukkit.*;
 import org.bukkit.block.Biome;
 import org.bukkit.block.Block;
+import org.bukkit.command.CommandSender;
 import org.bukkit.entity.*;
 import org.bukkit.generator.BlockPopulator;
 import org.bukkit.generator.ChunkGenerator;
@@ -89,11 +89,6 @@ public final class GlowWorld implements World {
      */
     private final Random random = new Random();
     
-    /**
-     * A map between locations and cached Block objects.
-     */
-    private final WeakValueMap<Location, GlowBlock> blockCache = new WeakValueMap<Location, GlowBlock>();
-    
     /**
      * The world populators for this world.
      */
@@ -184,6 +179,11 @@ public final class GlowWorld implements World {
      */
     private boolean autosave = true;
 
+    /**
+     * The pregeneration run in progress, or null.
+     */
+    private volatile ChunkPregenerator pregenerator;
+
     /**
      * The world's gameplay difficulty.
      */
@@ -212,7 +212,11 @@ public final class GlowWorld implements World {
         final ChunkGenerator generator = creator.generator();
         storageProvider = new AnvilWorldStorageProvider(new File(server.getWorldContainer(), name));
         storageProvider.setWorld(this);
-        chunks = new ChunkManager(this, storageProvider.getChunkIoService(), generator);
+        chunks = new ChunkManager(this, storageProvider.getChunkIoService(), generator, server.getChunkIoExecutor(), server.getChunkSavePool(), server.getGenerationExecutor());
+        chunks.setChunkLimit(server.getChunkLimit());
+        chunks.setUnloadDelay(server.getChunkUnloadDelay());
+        chunks.setEvictionTime(server.getChunkUnloadTime());
+        chunks.setSaveTime(server.getChunkSaveTime());
         populators = generator.getDefaultPopulators(this);
         EventFactory.onWorldInit(this);
 
@@ -284,6 +288,7 @@ public final class GlowWorld implements World {
         server.getLogger().log(Level.INFO, "Preparing spawn for {0}: done", name);
         EventFactory.onWorldLoad(this);
         save();
+        pregenerator = ChunkPregenerator.resume(this);
 
         ticksPerAnimal = server.getTicksPerAnimalSpawns();
         ticksPerMonster = server.getTicksPerMonsterSpawns();
@@ -312,6 +317,42 @@ public final class GlowWorld implements World {
         return new ChunkManager.ChunkLock(chunks, name + ": " + desc);
     }
 
+    /**
+     * Start generating the chunks within a radius of the spawn ahead of time,
+     * unless a run is already in progress.
+     * @param radius The radius in chunks.
+     * @param sender Who to send progress reports to, or null.
+     * @return Whether a new run was started.
+     */
+    public synchronized boolean pregenerate(int radius, CommandSender sender) {
+        if (pregenerator != null) {
+            return false;
+        }
+        pregenerator = ChunkPregenerator.start(this, sender, radius);
+        return true;
+    }
+
+    /**
+     * Cancel the pregeneration run in progress, forgetting its progress.
+     * @return Whether a run was cancelled.
+     */
+    public synchronized boolean cancelPregeneration() {
+        ChunkPregenerator pregen = pregenerator;
+        if (pregen == null) {
+            return false;
+        }
+        pregen.cancel();
+        return true;
+    }
+
+    /**
+     * Get the pregeneration run in progress.
+     * @return The pregenerator, or null.
+     */
+    public ChunkPregenerator getPregenerator() {
+        return pregenerator;
+    }
+
     /**
      * Updates all the entities within this world.
      */
@@ -352,19 +393,31 @@ public final class GlowWorld implements World {
                 GlowChunk[] chunkList = chunks.getLoadedChunks();
                 GlowChunk chunk = chunkList[random.nextInt(chunkList.length)];
                 
-                int x = (chunk.getX() << 4) + random.nextInt(16);
-                int z = (chunk.getZ() << 4) + random.nextInt(16);
-                int y = getHighestBlockYAt(x, z);
+                int cx = random.nextInt(16);
+                int cz = random.nextInt(16);
+                int y = chunk.getHeight(cx, cz);
                 
-                strikeLightning(new Location(this, x, y, z));
+                strikeLightning(new Location(this, (chunk.getX() << 4) + cx, y, (chunk.getZ() << 4) + cz));
             }
         }
         
+        chunks.pulse();
+
+        ChunkPregenerator pregen = pregenerator;
+        if (pregen != null && pregen.pulse(server.getPregenTime() * 1000000L)) {
+            pregenerator = null;
+        }
+
         if (--saveTimer <= 0) {
             saveTimer = 60 * 20;
-            chunks.unloadOldChunks();
             if (autosave) {
-                save();
+                // changed chunks are written a few at a time over the next ticks
+                EventFactory.onWorldSave(this);
+                chunks.scheduleSave();
+                for (GlowPlayer player : getRawPlayers()) {
+                    player.saveData(true);
+                }
+                writeWorldData(true);
             }
         }
     }
@@ -599,39 +652,8 @@ public final class GlowWorld implements World {
 
     public void save(boolean async) {
         EventFactory.onWorldSave(this);
-        if (async) {
-            server.getStorageQueue().queue(new StorageOperation() {
-                @Override
-                public boolean isParallel() {
-                    return true;
-                }
-
-                @Override
-                public String getGroup() {
-                    return getName();
-                }
-
-                @Override
-                public String getOperation() {
-                    return "world-save";
-                }
-
-                @Override
-                public boolean queueMultiple() {
-                    return false;
-                }
-
-                public void run() {
-                    for (GlowChunk chunk : chunks.getLoadedChunks()) {
-                        chunks.forceSave(chunk.getX(), chunk.getZ());
-                    }
-                }
-            });
-        } else {
-            for (GlowChunk chunk : chunks.getLoadedChunks()) {
-                chunks.forceSave(chunk.getX(), chunk.getZ());
-            }
-        }
+        // chunks are captured here and written in parallel on the save pool
+        chunks.saveChunks(!async);
         
         for (GlowPlayer player : getRawPlayers()) {
             player.saveData(async);
@@ -663,21 +685,44 @@ public final class GlowWorld implements World {
     // get block, chunk, id, highest methods with coords
 
     public GlowBlock getBlockAt(int x, int y, int z) {
-        Location blockLoc = new Location(this, x, y, z);
-        return blockCache.getOrCreate(blockLoc, new GlowBlock(getChunkAt(x >> 4, z >> 4), x, y, z));
+        return new GlowBlock(this, x, y, z);
     }
 
     public int getBlockTypeIdAt(int x, int y, int z) {
         return getChunkAt(x >> 4, z >> 4).getType(x & 0xF, z & 0xF, y);
     }
 
+    /**
+     * Gets the metadata of the block at the given coordinates without
+     * creating a Block object.
+     * @param x The X coordinate.
+     * @param y The Y coordinate.
+     * @param z The Z coordinate.
+     * @return The block's metadata.
+     */
+    public int getBlockDataAt(int x, int y, int z) {
+        return getChunkAt(x >> 4, z >> 4).getMetaData(x & 0xF, z & 0xF, y);
+    }
+
+    /**
+     * Sets the type and metadata of the block at the given coordinates
+     * without creating a Block object. No physics are applied and no block
+     * changes are sent to players, so this is intended for bulk edits such
+     * as terrain generation.
+     * @param x The X coordinate.
+     * @param y The Y coordinate.
+     * @param z The Z coordinate.
+     * @param type The new type.
+     * @param data The new metadata.
+     */
+    public void setBlockTypeIdAndDataAt(int x, int y, int z, int type, int data) {
+        GlowChunk chunk = getChunkAt(x >> 4, z >> 4);
+        chunk.setType(x & 0xF, z & 0xF, y, type);
+        chunk.setMetaData(x & 0xF, z & 0xF, y, data);
+    }
+
     public int getHighestBlockYAt(int x, int z) {
-        for (int y = getMaxHeight() - 1; y >= 0; --y) {
-            if (getBlockTypeIdAt(x, y, z) != 0) {
-                return y + 1;
-            }
-        }
-        return 0;
+        return getChunkAt(x >> 4, z >> 4).getHeight(x & 0xF, z & 0xF);
     }
 
     public GlowChunk getChunkAt(int x, int z) {
@@ -723,7 +768,7 @@ public final class GlowWorld implements World {
     }
 
     public boolean isChunkLoaded(int x, int z) {
-        return getChunkAt(x, z).isLoaded();
+        return chunks.isChunkLoaded(x, z);
     }
 
     public Chunk[] getLoadedChunks() {
@@ -1093,6 +1138,14 @@ public final class GlowWorld implements World {
      * @return true if successful
      */
     public boolean unload() {
+        ChunkPregenerator pregen = pregenerator;
+        if (pregen != null) {
+            // keep its progress so it carries on next time
+            pregen.stop();
+            pregenerator = null;
+        }
+        // let queued chunk saves reach the service before it checkpoints
+        chunks.awaitSaves();
         try {
             storageProvider.getChunkIoService().unload();
         } catch (IOException e) {
@@ -0,0 +1,273 @@
+package net.glowstone;
+
+import net.glowstone.entity.GlowPlayer;
+import net.glowstone.generator.populators.TreePopulator;
+import org.bukkit.event.world.ChunkPopulateEvent;
+import org.bukkit.generator.BlockPopulator;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Runs the block populators for many chunks at once, spreading chunks whose
+ * surroundings do not overlap across the generation pool.
+ * <p>
+ * Only Glowstone's own populators are run off the world thread. They write
+ * through the world's direct block accessors, so no physics or events are
+ * triggered, and they stay within the 3x3 neighbourhood of the chunk they
+ * populate, which is the area each chunk claims. If the world has any other
+ * populator, or anything listens for {@link ChunkPopulateEvent}, the chunks
+ * are populated one by one on the world thread instead, each followed by
+ * its event, exactly as before.
+ * <p>
+ * Chunks are run in waves of claims which do not overlap. A chunk which
+ * conflicts with the current wave is held back, and so is any later chunk
+ * which conflicts with a held-back one.
+ * That keeps the order of every pair of chunks which could affect each
+ * other, so the result is the same as populating them one by one. Each
+ * chunk gets its own Random, seeded as it always has been.
+ * <p>
+ * The world thread takes part in each wave and waits for it to finish, so
+ * nothing else in the world changes while populators are running.
+ */
+final class PopulationScheduler {
+
+    /**
+     * How many chunks around a chunk its population may touch.
+     */
+    private static final int REACH = 1;
+
+    private final GlowWorld world;
+    private final Executor executor;
+
+    /**
+     * Creates a new population scheduler.
+     * @param world The world.
+     * @param executor The executor to populate chunks on alongside the
+     * world thread, or null to populate only on the world thread.
+     */
+    public PopulationScheduler(GlowWorld world, Executor executor) {
+        this.world = world;
+        this.executor = executor;
+    }
+
+    /**
+     * Populate the given chunks, whose neighbourhoods must be loaded, in an
+     * order equivalent to the order given. Called on the world thread.
+     * @param chunks The chunks to populate.
+     */
+    public void populate(Collection<GlowChunk> chunks) {
+        List<GlowChunk> pending = new ArrayList<GlowChunk>(new LinkedHashSet<GlowChunk>(chunks));
+        Map<GlowChunk, Integer> visible = findVisible(pending);
+
+        List<BlockPopulator> populators = new ArrayList<BlockPopulator>(world.getPopulators());
+        if (!canRunInParallel(populators)) {
+            for (GlowChunk chunk : pending) {
+                if (!chunk.isPopulated()) {
+                    chunk.setPopulated(true);
+                    populate(chunk, populators);
+                    EventFactory.onChunkPopulate(chunk);
+                }
+            }
+            resendChanged(visible);
+            return;
+        }
+
+        while (!pending.isEmpty()) {
+            List<GlowChunk> wave = new ArrayList<GlowChunk>();
+            List<GlowChunk> held = new ArrayList<GlowChunk>();
+            Set<Long> claimed = new HashSet<Long>();
+            Set<Long> blocked = new HashSet<Long>();
+            for (GlowChunk chunk : pending) {
+                if (chunk.isPopulated()) {
+                    continue;
+                }
+                if (overlaps(chunk, claimed) || overlaps(chunk, blocked)) {
+                    held.add(chunk);
+                    claim(chunk, blocked);
+                } else {
+                    wave.add(chunk);
+                    claim(chunk, claimed);
+                }
+            }
+            run(wave, populators);
+            pending = held;
+        }
+        resendChanged(visible);
+    }
+
+    /**
+     * Check whether the given populators may be run off the world thread.
+     */
+    private boolean canRunInParallel(List<BlockPopulator> populators) {
+        if (executor == null || ChunkPopulateEvent.getHandlerList().getRegisteredListeners().length > 0) {
+            return false;
+        }
+        for (BlockPopulator p : populators) {
+            if (p.getClass().getPackage() != TreePopulator.class.getPackage()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Record the modification counts of chunks around the given ones which
+     * players can already see, since population may write into them.
+     */
+    private Map<GlowChunk, Integer> findVisible(List<GlowChunk> chunks) {
+        Map<GlowChunk, Integer> visible = new HashMap<GlowChunk, Integer>();
+        Collection<GlowPlayer> players = world.getRawPlayers();
+        if (players.isEmpty()) {
+            return visible;
+        }
+        for (GlowChunk chunk : chunks) {
+            if (chunk.isPopulated()) {
+                continue;
+            }
+            for (int x = chunk.getX() - 1; x <= chunk.getX() + 1; ++x) {
+                for (int z = chunk.getZ() - 1; z <= chunk.getZ() + 1; ++z) {
+                    GlowChunk.Key key = new GlowChunk.Key(x, z);
+                    for (GlowPlayer player : players) {
+                        if (player.canSee(key)) {
+                            GlowChunk neighbour = world.getChunkAt(x, z);
+                            visible.put(neighbour, neighbour.getModCount());
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        return visible;
+    }
+
+    /**
+     * Send visible chunks which population changed to the players who can
+     * see them, as populators do not send block changes themselves.
+     */
+    private void resendChanged(Map<GlowChunk, Integer> visible) {
+        for (Map.Entry<GlowChunk, Integer> entry : visible.entrySet()) {
+            GlowChunk chunk = entry.getKey();
+            if (!chunk.isLoaded() || chunk.getModCount() == entry.getValue()) {
+                continue;
+            }
+            GlowChunk.Key key = new GlowChunk.Key(chunk.getX(), chunk.getZ());
+            for (GlowPlayer player : world.getRawPlayers()) {
+                if (player.canSee(key)) {
+                    player.getSession().send(chunk.toMessage());
+                }
+            }
+        }
+    }
+
+    private static boolean overlaps(GlowChunk chunk, Set<Long> area) {
+        if (area.isEmpty()) {
+            return false;
+        }
+        for (int x = chunk.getX() - REACH; x <= chunk.getX() + REACH; ++x) {
+            for (int z = chunk.getZ() - REACH; z <= chunk.getZ() + REACH; ++z) {
+                if (area.contains(GlowChunk.Key.toLong(x, z))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void claim(GlowChunk chunk, Set<Long> area) {
+        for (int x = chunk.getX() - REACH; x <= chunk.getX() + REACH; ++x) {
+            for (int z = chunk.getZ() - REACH; z <= chunk.getZ() + REACH; ++z) {
+                area.add(GlowChunk.Key.toLong(x, z));
+            }
+        }
+    }
+
+    /**
+     * Populate a wave of chunks which cannot affect each other, then call
+     * their populate events on the world thread.
+     */
+    private void run(final List<GlowChunk> wave, final List<BlockPopulator> populators) {
+        if (wave.isEmpty()) {
+            return;
+        }
+
+        final long seed = world.getSeed();
+        Random random = new Random(seed);
+        final long xRand = random.nextLong() / 2 * 2 + 1;
+        final long zRand = random.nextLong() / 2 * 2 + 1;
+        for (GlowChunk chunk : wave) {
+            chunk.setPopulated(true);
+        }
+
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(wave.size());
+        Runnable worker = new Runnable() {
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < wave.size()) {
+                    GlowChunk chunk = wave.get(i);
+                    try {
+                        populate(chunk, populators, new Random((long) chunk.getX() * xRand + (long) chunk.getZ() * zRand ^ seed));
+                    } catch (Throwable t) {
+                        GlowServer.logger.log(Level.SEVERE, "Error while populating chunk (" + chunk.getX() + "," + chunk.getZ() + ")", t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }
+        };
+
+        if (executor != null) {
+            int helpers = Math.min(wave.size() - 1, Runtime.getRuntime().availableProcessors());
+            try {
+                for (int i = 0; i < helpers; ++i) {
+                    executor.execute(worker);
+                }
+            } catch (RejectedExecutionException ex) {
+                // the pool is shutting down, so do the rest here
+            }
+        }
+
+        // the world thread works too, so a busy pool only costs parallelism
+        worker.run();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (GlowChunk chunk : wave) {
+            EventFactory.onChunkPopulate(chunk);
+        }
+    }
+
+    /**
+     * Populate a single chunk on the world thread.
+     */
+    private void populate(GlowChunk chunk, List<BlockPopulator> populators) {
+        long seed = world.getSeed();
+        Random random = new Random(seed);
+        long xRand = random.nextLong() / 2 * 2 + 1;
+        long zRand = random.nextLong() / 2 * 2 + 1;
+        random.setSeed((long) chunk.getX() * xRand + (long) chunk.getZ() * zRand ^ seed);
+        populate(chunk, populators, random);
+    }
+
+    private void populate(GlowChunk chunk, List<BlockPopulator> populators, Random random) {
+        for (BlockPopulator p : populators) {
+            p.populate(world, random, chunk);
+        }
+    }
+
+}
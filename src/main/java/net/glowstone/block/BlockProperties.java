@@ -36,7 +36,7 @@ public enum BlockProperties {
     LAPIS_BLOCK(Material.LAPIS_BLOCK),
     DISPENSER(Material.DISPENSER, interact(), place(), redstone()),
     SANDSTONE(Material.SANDSTONE),
-    NOTE_BLOCK(Material.NOTE_BLOCK, interact(), redstone(), entity(GlowNoteBlock.class)),
+    NOTE_BLOCK(Material.NOTE_BLOCK, interact(), redstone(), entity(TileEntityFactory.NOTE_BLOCK)),
     BED_BLOCK(Material.BED_BLOCK, interact()),                  // todo: height
     POWERED_RAIL(Material.POWERED_RAIL, place(), redstone()),
     DETECTOR_RAIL(Material.DETECTOR_RAIL, place(), redstone()),
@@ -63,7 +63,7 @@ public enum BlockProperties {
     OBSIDIAN(Material.OBSIDIAN),
     TORCH(Material.TORCH, place(), passthru(), emitsLight(14)),
     FIRE(Material.FIRE, passthru(), emitsLight(15), drops()),
-    MOB_SPAWNER(Material.MOB_SPAWNER, entity(GlowCreatureSpawner.class)),
+    MOB_SPAWNER(Material.MOB_SPAWNER, entity(TileEntityFactory.MOB_SPAWNER)),
     WOOD_STAIRS(Material.WOOD_STAIRS, physics(new StairPhysics()), drops(Material.WOOD)),
     CHEST(Material.CHEST, interact()),
     REDSTONE_WIRE(Material.REDSTONE_WIRE, redstone()),
@@ -74,12 +74,12 @@ public enum BlockProperties {
     SOIL(Material.SOIL, drops(Material.DIRT)),
     FURNACE(Material.FURNACE, interact(), place()),
     BURNING_FURNACE(Material.BURNING_FURNACE, interact(), place()),
-    SIGN_POST(Material.SIGN_POST, passthru(), entity(GlowSign.class), drops(Material.SIGN)),
+    SIGN_POST(Material.SIGN_POST, passthru(), entity(TileEntityFactory.SIGN), drops(Material.SIGN)),
     WOODEN_DOOR(Material.WOODEN_DOOR, passthru(), interact(), place(), drops(Material.WOOD_DOOR)),
     LADDER(Material.LADDER, place(), passthru()),
     RAILS(Material.RAILS, place()),
     COBBLESTONE_STAIRS(Material.COBBLESTONE_STAIRS, passthru(), drops(Material.COBBLESTONE), physics(new StairPhysics())),
-    WALL_SIGN(Material.WALL_SIGN, passthru(), entity(GlowSign.class), drops(Material.SIGN)),
+    WALL_SIGN(Material.WALL_SIGN, passthru(), entity(TileEntityFactory.SIGN), drops(Material.SIGN)),
     LEVER(Material.LEVER, place(), interact(), passthru(), redstone()),
     STONE_PLATE(Material.STONE_PLATE, place(), passthru(), redstone()),
     IRON_DOOR_BLOCK(Material.IRON_DOOR_BLOCK, place(), passthru()),
@@ -165,7 +165,7 @@ public enum BlockProperties {
     // -----------------
 
     private ItemStack[] drops;
-    private Class<? extends GlowBlockState> entity;
+    private TileEntityFactory entity;
     private BlockPhysicsHandler physics = new DefaultBlockPhysics();
     private boolean redstone = false;
     private boolean interact = false;
@@ -198,9 +198,13 @@ public enum BlockProperties {
         return drops;
     }
     
-    public Class<? extends GlowBlockState> getEntityClass() {
+    public TileEntityFactory getEntityFactory() {
         return entity;
     }
+
+    public boolean hasTileEntity() {
+        return entity != null;
+    }
     
     public boolean hasRedstone() {
         return redstone;
@@ -301,9 +305,9 @@ public enum BlockProperties {
         }};
     }
     
-    private static Property entity(final Class<? extends GlowBlockState> clazz) {
+    private static Property entity(final TileEntityFactory factory) {
         return new Property() { public void apply(BlockProperties p) {
-            p.entity = clazz;
+            p.entity = factory;
         }};
     }
     
@@ -5,6 +5,7 @@ import net.glowstone.GlowWorld;
 import net.glowstone.block.physics.BlockPhysicsEngine;
 import net.glowstone.entity.GlowPlayer;
 import net.glowstone.net.message.play.game.BlockChangeMessage;
+import net.glowstone.util.Position;
 import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.block.Biome;
@@ -41,13 +42,13 @@ public class GlowBlock implements Block {
      */
     private static final MetadataStore<Block> metadata = new BlockMetadataStore();
 
-    private final GlowChunk chunk;
+    private final GlowWorld world;
     private final int x;
     private final int y;
     private final int z;
 
-    public GlowBlock(GlowChunk chunk, int x, int y, int z) {
-        this.chunk = chunk;
+    public GlowBlock(GlowWorld world, int x, int y, int z) {
+        this.world = world;
         this.x = x;
         this.y = y;
         this.z = z;
@@ -57,11 +58,17 @@ public class GlowBlock implements Block {
     // Basics
 
     public GlowWorld getWorld() {
-        return chunk.getWorld();
+        return world;
     }
 
+    /**
+     * Get the chunk this block is in. The chunk is looked up through the world
+     * every time rather than held on to, so that blocks do not keep chunks
+     * which have since been unloaded from being evicted.
+     * @return The GlowChunk containing this block.
+     */
     public GlowChunk getChunk() {
-        return chunk;
+        return world.getChunkAt(x >> 4, z >> 4);
     }
 
     public int getX() {
@@ -90,8 +97,9 @@ public class GlowBlock implements Block {
     }
 
     public GlowBlockState getState() {
-        if (chunk.getEntity(x & 0xf, y, z & 0xf) != null) {
-            return chunk.getEntity(x & 0xf, y, z & 0xf).shallowClone();
+        GlowBlockState entity = getChunk().getEntity(x & 0xf, y, z & 0xf);
+        if (entity != null) {
+            return entity.shallowClone();
         }
         return new GlowBlockState(this);
     }
@@ -127,7 +135,7 @@ public class GlowBlock implements Block {
     }
 
     public GlowBlock getRelative(int modX, int modY, int modZ) {
-        return getWorld().getBlockAt(x + modX, y + modY, z + modZ);
+        return new GlowBlock(world, x + modX, y + modY, z + modZ);
     }
 
     public GlowBlock getRelative(BlockFace face) {
@@ -146,7 +154,7 @@ public class GlowBlock implements Block {
     }
 
     public int getTypeId() {
-        return chunk.getType(x & 0xf, z & 0xf, y);
+        return getChunk().getType(x & 0xf, z & 0xf, y);
     }
 
     public void setType(Material type) {
@@ -162,6 +170,7 @@ public class GlowBlock implements Block {
     }
 
     public boolean setTypeIdAndData(int type, byte data, boolean applyPhysics) {
+        GlowChunk chunk = getChunk();
         chunk.setType(x & 0xf, z & 0xf, y, type);
         chunk.setMetaData(x & 0xf, z & 0xf, y, data);
         if (applyPhysics) {
@@ -188,7 +197,7 @@ public class GlowBlock implements Block {
     // Data and light getters/setters
 
     public byte getData() {
-        return (byte) chunk.getMetaData(x & 0xf, z & 0xf, y);
+        return (byte) getChunk().getMetaData(x & 0xf, z & 0xf, y);
     }
 
     public void setData(byte data) {
@@ -196,7 +205,7 @@ public class GlowBlock implements Block {
     }
 
     public void setData(byte data, boolean applyPhyiscs) {
-        chunk.setMetaData(x & 0xf, z & 0xf, y & 0x7f, data);
+        getChunk().setMetaData(x & 0xf, z & 0xf, y & 0x7f, data);
         if (applyPhyiscs) {
             BlockPhysicsEngine.doPhysics(this);
         }
@@ -211,11 +220,11 @@ public class GlowBlock implements Block {
     }
 
     public byte getLightFromSky() {
-        return chunk.getSkyLight(x & 0xf, z & 0xf, y);
+        return getChunk().getSkyLight(x & 0xf, z & 0xf, y);
     }
 
     public byte getLightFromBlocks() {
-        return chunk.getBlockLight(x & 0xf, z & 0xf, y);
+        return getChunk().getBlockLight(x & 0xf, z & 0xf, y);
     }
 
     ////////////////////////////////////////////////////////////////////////////
@@ -249,6 +258,20 @@ public class GlowBlock implements Block {
         throw new UnsupportedOperationException("Not supported yet.");
     }
 
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof GlowBlock)) return false;
+        GlowBlock other = (GlowBlock) obj;
+        return x == other.x && y == other.y && z == other.z && world == other.world;
+    }
+
+    @Override
+    public int hashCode() {
+        long packed = Position.packBlock(x, y, z);
+        return 31 * world.hashCode() + (int) (packed ^ (packed >>> 32));
+    }
+
     @Override
     public String toString() {
         return "GlowBlock{loc=" + getLocation().toString() + ",type=" + getTypeId() + ",data=" + getData() + "}";
@@ -19,7 +19,6 @@ import java.util.List;
 public class GlowBlockState implements BlockState {
 
     private final GlowWorld world;
-    private final GlowChunk chunk;
     private final int x;
     private final int y;
     private final int z;
@@ -34,7 +33,6 @@ public class GlowBlockState implements BlockState {
         z = block.getZ();
         type = block.getTypeId();
         light = block.getLightLevel();
-        chunk = block.getChunk();
         makeData(block.getData());
     }
 
@@ -46,7 +44,7 @@ public class GlowBlockState implements BlockState {
     }
 
     public GlowChunk getChunk() {
-        return chunk;
+        return world.getChunkAt(x >> 4, z >> 4);
     }
 
     public GlowBlock getBlock() {
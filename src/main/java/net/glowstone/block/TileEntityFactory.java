@@ -0,0 +1,33 @@
+package net.glowstone.block;
+
+/**
+ * Creates the tile entity for a block type which has one.
+ */
+public interface TileEntityFactory {
+
+    public static final TileEntityFactory NOTE_BLOCK = new TileEntityFactory() {
+        public GlowBlockState createEntity(GlowBlock block) {
+            return new GlowNoteBlock(block);
+        }
+    };
+
+    public static final TileEntityFactory MOB_SPAWNER = new TileEntityFactory() {
+        public GlowBlockState createEntity(GlowBlock block) {
+            return new GlowCreatureSpawner(block);
+        }
+    };
+
+    public static final TileEntityFactory SIGN = new TileEntityFactory() {
+        public GlowBlockState createEntity(GlowBlock block) {
+            return new GlowSign(block);
+        }
+    };
+
+    /**
+     * Create a new tile entity for the given block.
+     * @param block The block the tile entity belongs to.
+     * @return The new tile entity.
+     */
+    public GlowBlockState createEntity(GlowBlock block);
+
+}
@@ -20,7 +20,7 @@ public class FallingBlockPhysics extends DefaultBlockPhysics {
     }
 
     public boolean checkBelowFree(GlowBlock block) {
-        if (block.getRelative(BlockFace.DOWN).isEmpty()) {
+        if (block.getWorld().getBlockTypeIdAt(block.getX(), block.getY() - 1, block.getZ()) == 0) {
             block.setTypeId(0);
             block.getWorld().spawn(block.getLocation(), FallingSand.class);
             return true;
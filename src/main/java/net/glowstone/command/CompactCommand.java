@@ -0,0 +1,93 @@
+package net.glowstone.command;
+
+import net.glowstone.GlowServer;
+import net.glowstone.GlowWorld;
+import net.glowstone.io.StorageOperation;
+import org.bukkit.ChatColor;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.defaults.BukkitCommand;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.logging.Level;
+
+/**
+ * A built-in command to compact the region files of a world, reclaiming the
+ * space left between chunks as they are rewritten. Only loaded worlds are
+ * compacted, one region at a time while in use, so that the world's own
+ * chunk storage and journal are the only ones touching its files.
+ */
+public class CompactCommand extends BukkitCommand {
+
+    public CompactCommand(String name) {
+        super(name, "Compact the region files of a world.", "/compact <world>", Arrays.<String>asList());
+        setPermission("glowstone.command.compact");
+    }
+
+    @Override
+    public boolean execute(final CommandSender sender, String commandLabel, String[] args) {
+        if (!testPermission(sender)) {
+            return true;
+        }
+        if (args.length != 1) {
+            sender.sendMessage(ChatColor.RED + "Usage: " + usageMessage);
+            return false;
+        }
+
+        World found = sender.getServer().getWorld(args[0]);
+        if (!(found instanceof GlowWorld)) {
+            sender.sendMessage(ChatColor.RED + "No loaded world named " + args[0] + " was found.");
+            return true;
+        }
+        final GlowWorld world = (GlowWorld) found;
+        final String name = world.getName();
+
+        sender.sendMessage("Compacting the regions of " + name + "...");
+        GlowServer.storeQueue.queue(new StorageOperation() {
+            @Override
+            public boolean isParallel() {
+                return true;
+            }
+
+            @Override
+            public String getGroup() {
+                return name;
+            }
+
+            @Override
+            public boolean queueMultiple() {
+                return false;
+            }
+
+            @Override
+            public String getOperation() {
+                return "region-compact";
+            }
+
+            public void run() {
+                long start = System.currentTimeMillis();
+                try {
+                    long reclaimed = world.getChunkManager().compactStorage();
+                    reply(sender, "Compacted " + name + " in " + (System.currentTimeMillis() - start) + "ms, reclaiming " + (reclaimed / 1024) + "KB.");
+                } catch (IOException e) {
+                    GlowServer.logger.log(Level.SEVERE, "Error while compacting regions of " + name, e);
+                    reply(sender, ChatColor.RED + "Could not compact " + name + ": " + e.getMessage());
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Send a message to the sender from the main thread.
+     */
+    private static void reply(final CommandSender sender, final String message) {
+        sender.getServer().getScheduler().runTask(null, new Runnable() {
+            public void run() {
+                sender.sendMessage(message);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,82 @@
+package net.glowstone.command;
+
+import net.glowstone.ChunkPregenerator;
+import net.glowstone.GlowWorld;
+import org.bukkit.ChatColor;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.defaults.BukkitCommand;
+
+import java.util.Arrays;
+
+/**
+ * A built-in command to generate the chunks around a world's spawn ahead of
+ * time, so that players exploring it do not have to wait for generation.
+ * Runs in the background within a time budget each tick, carries on after
+ * a restart, and can be checked on or cancelled.
+ */
+public class PregenCommand extends BukkitCommand {
+
+    public PregenCommand(String name) {
+        super(name, "Generate the chunks around a world's spawn ahead of time.", "/pregen <world> <radius|status|cancel>", Arrays.<String>asList());
+        setPermission("glowstone.command.pregen");
+    }
+
+    @Override
+    public boolean execute(CommandSender sender, String commandLabel, String[] args) {
+        if (!testPermission(sender)) {
+            return true;
+        }
+        if (args.length != 2) {
+            sender.sendMessage(ChatColor.RED + "Usage: " + usageMessage);
+            return false;
+        }
+
+        World world = sender.getServer().getWorld(args[0]);
+        if (!(world instanceof GlowWorld)) {
+            sender.sendMessage(ChatColor.RED + "No loaded world named " + args[0] + " was found.");
+            return true;
+        }
+        GlowWorld glowWorld = (GlowWorld) world;
+
+        if (args[1].equalsIgnoreCase("status")) {
+            ChunkPregenerator pregen = glowWorld.getPregenerator();
+            sender.sendMessage(pregen == null ? world.getName() + " is not being pregenerated." : pregen.getStatus());
+            return true;
+        }
+        if (args[1].equalsIgnoreCase("cancel")) {
+            if (glowWorld.cancelPregeneration()) {
+                sender.sendMessage("Cancelled pregeneration of " + world.getName() + ".");
+            } else {
+                sender.sendMessage(ChatColor.RED + world.getName() + " is not being pregenerated.");
+            }
+            return true;
+        }
+
+        int radius;
+        try {
+            radius = Integer.parseInt(args[1]);
+        } catch (NumberFormatException e) {
+            sender.sendMessage(ChatColor.RED + "Invalid radius: " + args[1]);
+            return false;
+        }
+        if (radius < 0 || radius > ChunkPregenerator.MAX_RADIUS) {
+            sender.sendMessage(ChatColor.RED + "The radius must be between 0 and " + ChunkPregenerator.MAX_RADIUS + ".");
+            return false;
+        }
+
+        if (!glowWorld.pregenerate(radius, sender)) {
+            sender.sendMessage(ChatColor.RED + world.getName() + " is already being pregenerated; use /pregen " + world.getName() + " cancel first.");
+            return true;
+        }
+        int side = 2 * radius + 1;
+        sender.sendMessage("Pregenerating " + (side * side) + " chunks of " + world.getName() + " around its spawn...");
+        int limit = glowWorld.getChunkManager().getChunkLimit();
+        int window = ChunkPregenerator.getWindowSize(radius);
+        if (limit > 0 && window > limit) {
+            sender.sendMessage(ChatColor.YELLOW + "This will keep up to about " + window + " chunks loaded, beyond the chunk limit of " + limit + ".");
+        }
+        return true;
+    }
+
+}
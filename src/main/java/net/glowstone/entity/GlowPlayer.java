@@ -48,6 +48,34 @@ public final class GlowPlayer extends GlowHumanEntity implements Player, Invento
      */
     public static final double EYE_HEIGHT = 1.62D;
 
+    /**
+     * How many ticks ahead to predict the player's position when
+     * prefetching chunks.
+     */
+    private static final int PREFETCH_TICKS = 40;
+
+    /**
+     * The slowest movement in blocks per tick worth prefetching for, a
+     * little faster than sprinting.
+     */
+    private static final double PREFETCH_MIN_SPEED = 0.3;
+
+    /**
+     * The fastest movement in blocks per tick which is treated as motion
+     * rather than a teleport.
+     */
+    private static final double PREFETCH_MAX_SPEED = 8;
+
+    /**
+     * How much of each tick's movement goes into the smoothed motion.
+     */
+    private static final double PREFETCH_SMOOTHING = 0.25;
+
+    /**
+     * The most chunks to request ahead of the player each tick.
+     */
+    private static final int PREFETCH_PER_TICK = 32;
+
     /**
      * This player's session.
      */
@@ -113,6 +141,12 @@ public final class GlowPlayer extends GlowHumanEntity implements Player, Invento
      */
     private ChunkManager.ChunkLock chunkLock;
 
+    /**
+     * The player's recent horizontal movement in blocks per tick, smoothed
+     * over the last few ticks.
+     */
+    private double motionX, motionZ;
+
     /**
      * Whether the player is sneaking.
      */
@@ -191,6 +225,7 @@ public final class GlowPlayer extends GlowHumanEntity implements Player, Invento
     public void pulse() {
         super.pulse();
 
+        prefetchChunks();
         streamBlocks();
 
         for (Iterator<GlowEntity> it = knownEntities.iterator(); it.hasNext(); ) {
@@ -221,6 +256,83 @@ public final class GlowPlayer extends GlowHumanEntity implements Player, Invento
         }
     }
 
+    /**
+     * Request the chunks the player is heading towards in the background,
+     * based on their smoothed movement over the last few ticks, so that
+     * they are loaded by the time they come into view.
+     */
+    private void prefetchChunks() {
+        double dx = location.getX() - previousLocation.getX();
+        double dz = location.getZ() - previousLocation.getZ();
+        if (previousLocation.getWorld() != location.getWorld() || dx * dx + dz * dz > PREFETCH_MAX_SPEED * PREFETCH_MAX_SPEED) {
+            // teleported, so start again
+            motionX = motionZ = 0;
+            return;
+        }
+        motionX += (dx - motionX) * PREFETCH_SMOOTHING;
+        motionZ += (dz - motionZ) * PREFETCH_SMOOTHING;
+        if (motionX * motionX + motionZ * motionZ < PREFETCH_MIN_SPEED * PREFETCH_MIN_SPEED) {
+            return;
+        }
+
+        int centralX = location.getBlockX() >> 4;
+        int centralZ = location.getBlockZ() >> 4;
+        int aheadX = (int) Math.floor(location.getX() + motionX * PREFETCH_TICKS) >> 4;
+        int aheadZ = (int) Math.floor(location.getZ() + motionZ * PREFETCH_TICKS) >> 4;
+        if (aheadX == centralX && aheadZ == centralZ) {
+            return;
+        }
+
+        // only the chunks which are not in view yet, since those are streamed
+        ChunkManager manager = world.getChunkManager();
+        int radius = server.getViewDistance();
+        int requested = 0;
+        for (int x = aheadX - radius; x <= aheadX + radius; x++) {
+            for (int z = aheadZ - radius; z <= aheadZ + radius; z++) {
+                if (Math.abs(x - centralX) <= radius && Math.abs(z - centralZ) <= radius) {
+                    continue;
+                }
+                if (!manager.isChunkLoaded(x, z) && !manager.isChunkLoading(x, z)) {
+                    manager.loadChunkAsync(x, z, true, null);
+                    if (++requested >= PREFETCH_PER_TICK) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether a chunk can be sent without waiting on disk or the
+     * generator: it must be loaded and either populated or surrounded by
+     * loaded chunks so it can be populated. Any missing chunks are requested
+     * in the background.
+     * @param x The chunk's X coordinate.
+     * @param z The chunk's Z coordinate.
+     * @return Whether the chunk is ready to be sent.
+     */
+    private boolean prepareChunk(int x, int z) {
+        ChunkManager manager = world.getChunkManager();
+        if (!manager.isChunkLoaded(x, z)) {
+            manager.loadChunkAsync(x, z, true, null);
+            return false;
+        }
+        if (manager.getChunk(x, z).isPopulated()) {
+            return true;
+        }
+
+        boolean ready = true;
+        for (int dx = x - 1; dx <= x + 1; ++dx) {
+            for (int dz = z - 1; dz <= z + 1; ++dz) {
+                if (!manager.isChunkLoaded(dx, dz)) {
+                    manager.loadChunkAsync(dx, dz, true, null);
+                    ready = false;
+                }
+            }
+        }
+        return ready;
+    }
+
     /**
      * Streams chunks to the player's client.
      */
@@ -247,6 +359,15 @@ public final class GlowPlayer extends GlowHumanEntity implements Player, Invento
             return;
         }
 
+        // chunks which are not ready yet are loaded in the background and
+        // picked up on a later pulse, since they are not known until sent
+        for (Iterator<GlowChunk.Key> it = newChunks.iterator(); it.hasNext(); ) {
+            GlowChunk.Key key = it.next();
+            if (!prepareChunk(key.getX(), key.getZ())) {
+                it.remove();
+            }
+        }
+
         Collections.sort(newChunks, new Comparator<GlowChunk.Key>() {
             public int compare(GlowChunk.Key a, GlowChunk.Key b) {
                 double dx = 16 * a.getX() + 8 - location.getX();
@@ -270,9 +391,7 @@ public final class GlowPlayer extends GlowHumanEntity implements Player, Invento
         // done in two steps so that all the new chunks are finalized before any of them are sent
         // this prevents sending a chunk then immediately sending block changes in it because
         // one of its neighbors has populated
-        for (GlowChunk.Key key : newChunks) {
-            world.getChunkManager().forcePopulation(key.getX(), key.getZ());
-        }
+        world.getChunkManager().forcePopulation(newChunks);
         for (GlowChunk.Key key : newChunks) {
             GlowChunk chunk = world.getChunkAt(key.getX(), key.getZ());
             if (bulkChunks == null) {
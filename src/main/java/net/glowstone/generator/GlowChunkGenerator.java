@@ -4,13 +4,13 @@ import net.glowstone.GlowChunk;
 import net.glowstone.block.BlockProperties;
 import org.bukkit.Material;
 import org.bukkit.World;
-import org.bukkit.block.Block;
-import org.bukkit.block.BlockFace;
 import org.bukkit.generator.BlockPopulator;
 import org.bukkit.generator.ChunkGenerator;
 import org.bukkit.util.noise.OctaveGenerator;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Base chunk generator class.
@@ -18,7 +18,7 @@ import java.util.*;
 public abstract class GlowChunkGenerator extends ChunkGenerator {
 
     private static final Set<Material> noSpawnFloors = new HashSet<Material>(Arrays.asList(Material.FIRE, Material.CACTUS, Material.LEAVES));
-    private final Map<String, Map<String, OctaveGenerator>> octaveCache = new HashMap<String, Map<String, OctaveGenerator>>();
+    private final ConcurrentMap<String, Map<String, OctaveGenerator>> octaveCache = new ConcurrentHashMap<String, Map<String, OctaveGenerator>>();
     private final List<BlockPopulator> populators;
 
     protected GlowChunkGenerator(BlockPopulator... args) {
@@ -33,17 +33,22 @@ public abstract class GlowChunkGenerator extends ChunkGenerator {
     }
 
     /**
+     * Chunks may be generated on several threads at once, so the map is not
+     * modified once it has been cached.
      * @param world The world to look for in the cache
      * @return A map of {@link OctaveGenerator}s created by {@link #createWorldOctaves(World, Map)}
      */
     protected final Map<String, OctaveGenerator> getWorldOctaves(World world) {
-        if (octaveCache.get(world.getName()) == null) {
-            Map<String, OctaveGenerator> octaves = new HashMap<String, OctaveGenerator>();
+        Map<String, OctaveGenerator> octaves = octaveCache.get(world.getName());
+        if (octaves == null) {
+            octaves = new HashMap<String, OctaveGenerator>();
             createWorldOctaves(world, octaves);
-            octaveCache.put(world.getName(), octaves);
-            return octaves;
+            Map<String, OctaveGenerator> previous = octaveCache.putIfAbsent(world.getName(), octaves);
+            if (previous != null) {
+                octaves = previous;
+            }
         }
-        return octaveCache.get(world.getName());
+        return octaves;
     }
 
     /**
@@ -106,8 +111,10 @@ public abstract class GlowChunkGenerator extends ChunkGenerator {
 
     @Override
     public boolean canSpawn(World world, int x, int z) {
-        Block block = world.getHighestBlockAt(x, z).getRelative(BlockFace.DOWN);
-        return !block.isLiquid() && !block.isEmpty() && !noSpawnFloors.contains(block.getType());
+        int id = world.getBlockTypeIdAt(x, world.getHighestBlockYAt(x, z) - 1, z);
+        Material type = Material.getMaterial(id);
+        boolean liquid = type == Material.WATER || type == Material.STATIONARY_WATER || type == Material.LAVA || type == Material.STATIONARY_LAVA;
+        return id != 0 && !liquid && !noSpawnFloors.contains(type);
     }
     
 }
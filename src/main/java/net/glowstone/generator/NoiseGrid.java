@@ -0,0 +1,146 @@
+package net.glowstone.generator;
+
+import org.bukkit.util.noise.NoiseGenerator;
+import org.bukkit.util.noise.OctaveGenerator;
+
+import java.util.Arrays;
+
+/**
+ * Evaluates octave noise over a whole grid of points in one call. Each
+ * octave is applied to every point before moving on to the next, so the
+ * octave lookup and scaling happen once per octave rather than per point.
+ * <p>
+ * {@link #fill2D} gives exactly the values of the equivalent
+ * {@link OctaveGenerator#noise(double, double, double, double, boolean)}
+ * calls. {@link #sample3D} only evaluates the noise on a coarser lattice and
+ * interpolates between, which suits slowly varying noise such as densities.
+ */
+public final class NoiseGrid {
+
+    private NoiseGrid() {
+    }
+
+    /**
+     * Fill a grid with two-dimensional octave noise.
+     * @param gen The octave generator.
+     * @param out The array to fill, indexed by {@code ix * sizeZ + iz}.
+     * @param x The X coordinate of the first point.
+     * @param z The Z coordinate of the first point.
+     * @param sizeX The number of points along X.
+     * @param sizeZ The number of points along Z.
+     * @param frequency How much to alter the frequency by each octave.
+     * @param amplitude How much to alter the amplitude by each octave.
+     * @param normalized Whether to scale the results to between -1 and 1.
+     */
+    public static void fill2D(OctaveGenerator gen, double[] out, double x, double z, int sizeX, int sizeZ, double frequency, double amplitude, boolean normalized) {
+        int size = sizeX * sizeZ;
+        Arrays.fill(out, 0, size, 0);
+        // two-dimensional noise is taken in the generator's X and Y plane
+        double xScale = gen.getXScale();
+        double zScale = gen.getYScale();
+
+        double freq = 1, amp = 1, max = 0;
+        for (NoiseGenerator octave : gen.getOctaves()) {
+            int i = 0;
+            for (int ix = 0; ix < sizeX; ++ix) {
+                double px = (x + ix) * xScale * freq;
+                for (int iz = 0; iz < sizeZ; ++iz) {
+                    out[i++] += octave.noise(px, (z + iz) * zScale * freq, 0) * amp;
+                }
+            }
+            max += amp;
+            freq *= frequency;
+            amp *= amplitude;
+        }
+
+        if (normalized) {
+            for (int i = 0; i < size; ++i) {
+                out[i] /= max;
+            }
+        }
+    }
+
+    /**
+     * Fill a grid with three-dimensional octave noise, evaluated every
+     * {@code step} points horizontally and every {@code stepY} points
+     * vertically, and linearly interpolated in between.
+     * @param gen The octave generator.
+     * @param out The array to fill, indexed by {@code (ix * sizeZ + iz) * sizeY + iy}.
+     * @param x The X coordinate of the first point.
+     * @param y The Y coordinate of the first point.
+     * @param z The Z coordinate of the first point.
+     * @param sizeX The number of points along X.
+     * @param sizeY The number of points along Y.
+     * @param sizeZ The number of points along Z.
+     * @param step The horizontal distance between evaluated points.
+     * @param stepY The vertical distance between evaluated points.
+     * @param frequency How much to alter the frequency by each octave.
+     * @param amplitude How much to alter the amplitude by each octave.
+     * @param normalized Whether to scale the results to between -1 and 1.
+     */
+    public static void sample3D(OctaveGenerator gen, double[] out, double x, double y, double z, int sizeX, int sizeY, int sizeZ, int step, int stepY, double frequency, double amplitude, boolean normalized) {
+        if (step <= 0 || stepY <= 0) {
+            throw new IllegalArgumentException("steps must be positive");
+        }
+
+        // the lattice covers the grid, reaching past its far edges if needed
+        int nx = (sizeX - 1) / step + 2;
+        int ny = (sizeY - 1) / stepY + 2;
+        int nz = (sizeZ - 1) / step + 2;
+        double[] lattice = new double[nx * ny * nz];
+        double xScale = gen.getXScale();
+        double yScale = gen.getYScale();
+        double zScale = gen.getZScale();
+
+        double freq = 1, amp = 1, max = 0;
+        for (NoiseGenerator octave : gen.getOctaves()) {
+            int i = 0;
+            for (int lx = 0; lx < nx; ++lx) {
+                double px = (x + lx * step) * xScale * freq;
+                for (int lz = 0; lz < nz; ++lz) {
+                    double pz = (z + lz * step) * zScale * freq;
+                    for (int ly = 0; ly < ny; ++ly) {
+                        lattice[i++] += octave.noise(px, (y + ly * stepY) * yScale * freq, pz) * amp;
+                    }
+                }
+            }
+            max += amp;
+            freq *= frequency;
+            amp *= amplitude;
+        }
+
+        if (normalized) {
+            for (int i = 0; i < lattice.length; ++i) {
+                lattice[i] /= max;
+            }
+        }
+
+        int i = 0;
+        for (int ix = 0; ix < sizeX; ++ix) {
+            int lx = ix / step;
+            double tx = (double) (ix % step) / step;
+            for (int iz = 0; iz < sizeZ; ++iz) {
+                int lz = iz / step;
+                double tz = (double) (iz % step) / step;
+                int c00 = (lx * nz + lz) * ny;
+                int c01 = c00 + ny;
+                int c10 = c00 + nz * ny;
+                int c11 = c10 + ny;
+                for (int iy = 0; iy < sizeY; ++iy) {
+                    int ly = iy / stepY;
+                    double ty = (double) (iy % stepY) / stepY;
+                    double v00 = lerp(lattice[c00 + ly], lattice[c00 + ly + 1], ty);
+                    double v01 = lerp(lattice[c01 + ly], lattice[c01 + ly + 1], ty);
+                    double v10 = lerp(lattice[c10 + ly], lattice[c10 + ly + 1], ty);
+                    double v11 = lerp(lattice[c11 + ly], lattice[c11 + ly + 1], ty);
+                    out[i++] = lerp(lerp(v00, v01, tz), lerp(v10, v11, tz), tx);
+                }
+            }
+        }
+    }
+
+    private static double lerp(double a, double b, double t) {
+        return a + (b - a) * t;
+    }
+
+}
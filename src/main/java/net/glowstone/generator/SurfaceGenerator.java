@@ -1,5 +1,6 @@
 package net.glowstone.generator;
 
+import net.glowstone.GlowChunk;
 import net.glowstone.generator.populators.*;
 import org.bukkit.Location;
 import org.bukkit.Material;
@@ -28,7 +29,7 @@ public class SurfaceGenerator extends GlowChunkGenerator {
                 new FlowerPopulator(),
                 // Below-ground
                 new DungeonPopulator(),
-                //new CavePopulator(),
+                new CavePopulator(),
                 new OrePopulator());
     }
 
@@ -51,54 +52,67 @@ public class SurfaceGenerator extends GlowChunkGenerator {
         Material matLiquid = nether ? Material.STATIONARY_LAVA : Material.STATIONARY_WATER;
 
         byte[] buf = start(Material.AIR);
-
-        int baseHeight = world.getMaxHeight() / 2;
+        byte idMain = (byte) matMain.getId();
+        byte idShore = (byte) matShore.getId();
+        byte idShore2 = (byte) matShore2.getId();
+        byte idTop = (byte) matTop.getId();
+        byte idUnder = (byte) matUnder.getId();
+        byte idLiquid = (byte) matLiquid.getId();
+
+        int maxHeight = world.getMaxHeight();
+        int baseHeight = maxHeight / 2;
         double terrainHeight = 50;
         boolean noDirt = true;
-        int waterLevel = world.getMaxHeight() / 2;
+        int waterLevel = maxHeight / 2;
+
+        // evaluate the noise for the whole chunk up front
+        double[] heights = new double[16 * 16];
+        double[] jitters = new double[16 * 16];
+        double[] types = new double[16 * 16 * maxHeight];
+        NoiseGrid.fill2D(noiseHeight, heights, chunkX, chunkZ, 16, 16, 0.7, 0.6, true);
+        NoiseGrid.fill2D(noiseJitter, jitters, chunkX, chunkZ, 16, 16, 0.5, 0.5, false);
+        NoiseGrid.sample3D(noiseType, types, chunkX, 0, chunkZ, 16, maxHeight, 16, 4, 8, 0.5, 0.5, false);
 
         for (int x = 0; x < 16; x++) {
             for (int z = 0; z < 16; z++) {
+                int column = x * 16 + z;
+                int base = column * GlowChunk.DEPTH;
                 int deep = 0;
                 for (int y = (int) Math.min(baseHeight
-                        + noiseHeight.noise(x + chunkX, z + chunkZ, 0.7, 0.6, true)
-                        * terrainHeight
-                        + noiseJitter.noise(x + chunkX, z + chunkZ, 0.5, 0.5)
-                        * 1.5, world.getMaxHeight() - 1); y > 0; y--) {
-                    double terrainType = noiseType.noise(x + chunkX, y, z + chunkZ, 0.5, 0.5);
-                    Material ground = matTop;
+                        + heights[column] * terrainHeight
+                        + jitters[column] * 1.5, maxHeight - 1); y > 0; y--) {
+                    double terrainType = types[column * maxHeight + y];
+                    byte ground = idTop;
                     if (Math.abs(terrainType) < random.nextDouble() / 3 && !noDirt) {
-                        ground = matMain;
+                        ground = idMain;
                     } else if (deep != 0 || y < waterLevel) {
-                        ground = matMain;
+                        ground = idMain;
                     }
 
                     if (Math.abs(y - waterLevel) < 5 - random.nextInt(2) && deep < 7) {
                         if (terrainType < random.nextDouble() / 2) {
                             if (terrainType < random.nextDouble() / 4) {
-                                ground = matShore;
+                                ground = idShore;
                             } else {
-                                ground = matShore2;
+                                ground = idShore2;
                             }
                         }
                     }
 
                     if (deep > random.nextInt(3) + 6) {
-                        ground = matUnder;
+                        ground = idUnder;
                     }
 
-                    set(buf, x, y, z, ground);
+                    if (y < GlowChunk.DEPTH) {
+                        buf[base + y] = ground;
+                    }
                     deep++;
                 }
-                set(buf, x, 0, z, Material.BEDROCK);
-            }
-        }
+                buf[base] = (byte) Material.BEDROCK.getId();
 
-        for (int x = 0; x < 16; x++) {
-            for (int z = 0; z < 16; z++) {
-                for (int y = 0; y < waterLevel; y++) {
-                    if (get(buf, x, y, z) == Material.AIR) {
-                        set(buf, x, y, z, matLiquid);
+                for (int y = 0; y < waterLevel && y < GlowChunk.DEPTH; y++) {
+                    if (buf[base + y] == 0) {
+                        buf[base + y] = idLiquid;
                     }
                 }
             }
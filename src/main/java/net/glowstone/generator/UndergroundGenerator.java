@@ -103,8 +103,8 @@ public class UndergroundGenerator extends GlowChunkGenerator {
             int y = world.getMaxHeight() * 3 / 4;
             int z = random.nextInt(world.getMaxHeight()) - 64;
 
-            if (world.getBlockAt(x, y, z).isEmpty()) {
-                while (world.getBlockAt(x, y - 1, z).isEmpty() && y > 0) {
+            if (world.getBlockTypeIdAt(x, y, z) == 0) {
+                while (world.getBlockTypeIdAt(x, y - 1, z) == 0 && y > 0) {
                     y--;
                 }
                 return new Location(world, x, y, z);
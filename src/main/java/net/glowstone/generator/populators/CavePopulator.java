@@ -1,141 +1,199 @@
 package net.glowstone.generator.populators;
 
+import net.glowstone.GlowChunk;
+import net.glowstone.GlowServer;
+import net.glowstone.GlowWorld;
 import org.bukkit.Chunk;
-import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.World;
-import org.bukkit.block.Block;
 import org.bukkit.generator.BlockPopulator;
 
-import java.util.HashSet;
+import java.util.BitSet;
 import java.util.Random;
-import java.util.Set;
+import java.util.logging.Level;
 
 /**
  * BlockPopulator for snake-based caves.
+ * <p>
+ * A cave is confined to the source chunk and its eight neighbours, which
+ * population guarantees are loaded and leaves to this populator until it
+ * returns. The snakes walk with their own Random seeded from the population
+ * Random, reading the blocks in that area and marking what they carve, and
+ * the carve is written back before populate returns.
  */
 public class CavePopulator extends BlockPopulator {
 
-    private static class FinishSnakeTask implements Runnable {
+    /**
+     * The width of the area a cave may carve, in blocks.
+     */
+    private static final int AREA = 48;
 
-        private final Location[] snake;
+    /**
+     * How many steps a snake may take before it is stopped.
+     */
+    private static final int MAX_STEPS = 20000;
 
-        public FinishSnakeTask(Set<Location> snake) {
-            this.snake = snake.toArray(new Location[snake.size()]);
+    @Override
+    public void populate(World world, Random random, Chunk source) {
+        if (random.nextInt(100) >= 10) {
+            return;
+        }
+        int x = 4 + random.nextInt(8) + source.getX() * 16;
+        int z = 4 + random.nextInt(8) + source.getZ() * 16;
+        int maxY = world.getHighestBlockYAt(x, z);
+        if (maxY < 16) {
+            maxY = 32;
+        }
+        int y = random.nextInt(maxY);
+        long seed = random.nextLong();
+
+        GlowWorld glowWorld = (GlowWorld) world;
+        int originX = (source.getX() - 1) * 16;
+        int originZ = (source.getZ() - 1) * 16;
+        int height = world.getMaxHeight();
+
+        GlowChunk[] area = new GlowChunk[9];
+        for (int cx = 0; cx < 3; ++cx) {
+            for (int cz = 0; cz < 3; ++cz) {
+                area[cx * 3 + cz] = glowWorld.getChunkAt(source.getX() - 1 + cx, source.getZ() - 1 + cz);
+            }
         }
 
-        @Override
-        public void run() {
-            for (Location loc : snake) {
-                Block block = loc.getBlock();
-                if (!block.isEmpty() && !block.isLiquid() && block.getType() != Material.BEDROCK) {
-                    block.setType(Material.AIR);
+        BitSet carved = new BitSet(AREA * AREA * height);
+        try {
+            Snake snake = new Snake(new Random(seed), area, carved, height);
+            snake.walk(x - originX, y, z - originZ);
+            if (snake.random.nextInt(16) > 5) {
+                if (y > 36) {
+                    snake.walk(x - originX, y / 2, z - originZ);
+                } else if (y < 24) {
+                    snake.walk(x - originX, y * 2, z - originZ);
                 }
             }
+        } catch (RuntimeException e) {
+            GlowServer.logger.log(Level.SEVERE, "Error while carving cave at " + x + "," + y + "," + z, e);
+            return;
+        }
+        apply(area, height, carved);
+    }
 
-            for (Location loc : snake) {
-                loc.getWorld().unloadChunkRequest(loc.getBlockX() / 16, loc.getBlockZ() / 16);
+    /**
+     * Write the carved blocks into the area, skipping air, liquids and
+     * bedrock.
+     */
+    private static void apply(GlowChunk[] area, int height, BitSet carved) {
+        int bedrock = Material.BEDROCK.getId();
+        for (int i = carved.nextSetBit(0); i >= 0; i = carved.nextSetBit(i + 1)) {
+            int y = i % height;
+            int column = i / height;
+            int ax = column / AREA, az = column % AREA;
+            GlowChunk chunk = area[(ax >> 4) * 3 + (az >> 4)];
+            int type = chunk.getType(ax & 0xf, az & 0xf, y);
+            if (type == 0 || type == bedrock || (type >= 8 && type <= 11)) {
+                // leave air, liquids and bedrock alone
+                continue;
             }
+            chunk.setType(ax & 0xf, az & 0xf, y, 0);
         }
     }
 
-    @Override
-    public void populate(final World world, final Random random, Chunk source) {
-        if (random.nextInt(100) < 10) {
-            final int x = 4 + random.nextInt(8) + source.getX() * 16;
-            final int z = 4 + random.nextInt(8) + source.getZ() * 16;
-            int maxY = world.getHighestBlockYAt(x, z);
-            if (maxY < 16) {
-                maxY = 32;
-            }
+    /**
+     * A cave-carving walk through the area around a chunk, which treats air
+     * in the world and blocks it has already carved as air, and everything
+     * else in the area as solid.
+     */
+    private static final class Snake {
+        private final Random random;
+        private final GlowChunk[] area;
+        private final BitSet carved;
+        private final int height;
+
+        public Snake(Random random, GlowChunk[] area, BitSet carved, int height) {
+            this.random = random;
+            this.area = area;
+            this.carved = carved;
+            this.height = height;
+        }
 
-            final int y = random.nextInt(maxY);
-            new Thread() {
-
-                @Override
-                public void run() {
-                    Set<Location> snake = startSnake(world, random, x, y, z);
-                    // Bukkit.getServer().getScheduler().scheduleSyncDelayedTask(GenPlugin.instance, new FinishSnake(world, snake));
-
-                    if (random.nextInt(16) > 5) {
-                        if (y > 36) {
-                            snake = startSnake(world, random, x, y / 2, z);
-                            // Bukkit.getServer().getScheduler().scheduleSyncDelayedTask(GenPlugin.instance, new FinishSnake(world, snake));
-                        } else if (y < 24) {
-                            snake = startSnake(world, random, x, y * 2, z);
-                            // Bukkit.getServer().getScheduler().scheduleSyncDelayedTask(GenPlugin.instance, new FinishSnake(world, snake));
-                        }
-                    }
-                }
-            }.start();
+        private boolean inArea(int x, int y, int z) {
+            return x >= 0 && x < AREA && z >= 0 && z < AREA && y >= 0 && y < height;
         }
-    }
 
-    private static Set<Location> startSnake(World world, Random random, int blockX, int blockY, int blockZ) {
-        Set<Location> snakeBlocks = new HashSet<Location>();
+        private int index(int x, int y, int z) {
+            return (x * AREA + z) * height + y;
+        }
 
-        int airHits = 0;
-        while (true) {
-            if (airHits > 2000) {
-                break;
+        private boolean isAir(int x, int y, int z) {
+            if (y >= height) {
+                return true;
+            } else if (!inArea(x, y, z)) {
+                return false;
             }
+            return carved.get(index(x, y, z)) || area[(x >> 4) * 3 + (z >> 4)].getType(x & 0xf, z & 0xf, y) == 0;
+        }
 
-            if (random.nextInt(20) == 0) {
-                blockY++;
-            } else if (world.getBlockTypeIdAt(blockX, blockY + 2, blockZ) == 0) {
-                blockY += 2;
-            } else if (world.getBlockTypeIdAt(blockX + 2, blockY, blockZ) == 0) {
-                blockX++;
-            } else if (world.getBlockTypeIdAt(blockX - 2, blockY, blockZ) == 0) {
-                blockX--;
-            } else if (world.getBlockTypeIdAt(blockX, blockY, blockZ + 2) == 0) {
-                blockZ++;
-            } else if (world.getBlockTypeIdAt(blockX, blockY, blockZ - 2) == 0) {
-                blockZ--;
-            } else if (world.getBlockTypeIdAt(blockX + 1, blockY, blockZ) == 0) {
-                blockX++;
-            } else if (world.getBlockTypeIdAt(blockX - 1, blockY, blockZ) == 0) {
-                blockX--;
-            } else if (world.getBlockTypeIdAt(blockX, blockY, blockZ + 1) == 0) {
-                blockZ++;
-            } else if (world.getBlockTypeIdAt(blockX, blockY, blockZ - 1) == 0) {
-                blockZ--;
-            } else if (random.nextBoolean()) {
-                if (random.nextBoolean()) {
+        public void walk(int blockX, int blockY, int blockZ) {
+            int airHits = 0;
+            for (int step = 0; step < MAX_STEPS && airHits <= 2000; ++step) {
+                if (random.nextInt(20) == 0) {
+                    blockY++;
+                } else if (isAir(blockX, blockY + 2, blockZ)) {
+                    blockY += 2;
+                } else if (isAir(blockX + 2, blockY, blockZ)) {
                     blockX++;
-                } else {
+                } else if (isAir(blockX - 2, blockY, blockZ)) {
+                    blockX--;
+                } else if (isAir(blockX, blockY, blockZ + 2)) {
                     blockZ++;
-                }
-            } else {
-                if (random.nextBoolean()) {
+                } else if (isAir(blockX, blockY, blockZ - 2)) {
+                    blockZ--;
+                } else if (isAir(blockX + 1, blockY, blockZ)) {
+                    blockX++;
+                } else if (isAir(blockX - 1, blockY, blockZ)) {
                     blockX--;
-                } else {
+                } else if (isAir(blockX, blockY, blockZ + 1)) {
+                    blockZ++;
+                } else if (isAir(blockX, blockY, blockZ - 1)) {
                     blockZ--;
+                } else if (random.nextBoolean()) {
+                    if (random.nextBoolean()) {
+                        blockX++;
+                    } else {
+                        blockZ++;
+                    }
+                } else {
+                    if (random.nextBoolean()) {
+                        blockX--;
+                    } else {
+                        blockZ--;
+                    }
                 }
-            }
 
-            if (world.getBlockTypeIdAt(blockX, blockY, blockZ) != 0) {
-                int radius = 1 + random.nextInt(3);
-                int radius2 = radius * radius + 1;
-                for (int x = -radius; x <= radius; x++) {
-                    for (int y = -radius; y <= radius; y++) {
-                        for (int z = -radius; z <= radius; z++) {
-                            if (x * x + y * y + z * z <= radius2 && y >= 0 && y < world.getMaxHeight()) {
-                                if (world.getBlockTypeIdAt(blockX + x, blockY + y, blockZ + z) == 0) {
-                                    airHits++;
-                                } else {
-                                    snakeBlocks.add(new Location(world, blockX + x, blockY + y, blockZ + z));
+                // stay within the area which is known to be loaded
+                blockX = Math.max(0, Math.min(AREA - 1, blockX));
+                blockZ = Math.max(0, Math.min(AREA - 1, blockZ));
+
+                if (inArea(blockX, blockY, blockZ) && !isAir(blockX, blockY, blockZ)) {
+                    int radius = 1 + random.nextInt(3);
+                    int radius2 = radius * radius + 1;
+                    for (int x = -radius; x <= radius; x++) {
+                        for (int y = -radius; y <= radius; y++) {
+                            for (int z = -radius; z <= radius; z++) {
+                                if (x * x + y * y + z * z <= radius2 && inArea(blockX + x, blockY + y, blockZ + z)) {
+                                    if (isAir(blockX + x, blockY + y, blockZ + z)) {
+                                        airHits++;
+                                    } else {
+                                        carved.set(index(blockX + x, blockY + y, blockZ + z));
+                                    }
                                 }
                             }
                         }
                     }
+                } else {
+                    airHits++;
                 }
-            } else {
-                airHits++;
             }
         }
-
-        return snakeBlocks;
     }
-    
+
 }
@@ -1,12 +1,11 @@
 package net.glowstone.generator.populators;
 
+import net.glowstone.GlowWorld;
 import org.bukkit.Chunk;
 import org.bukkit.Material;
 import org.bukkit.World;
 import org.bukkit.World.Environment;
 import org.bukkit.block.Biome;
-import org.bukkit.block.Block;
-import org.bukkit.block.BlockFace;
 import org.bukkit.generator.BlockPopulator;
 
 import java.util.Random;
@@ -18,40 +17,40 @@ public class DesertPopulator extends BlockPopulator {
 
     @Override
     public void populate(World world, Random random, Chunk chunk) {
+        GlowWorld glowWorld = (GlowWorld) world;
         boolean nether = world.getEnvironment() == Environment.NETHER;
-        Material matSand = nether ? Material.SOUL_SAND : Material.SAND;
-        Material matDirt = nether ? Material.NETHERRACK : Material.DIRT;
+        int sand = (nether ? Material.SOUL_SAND : Material.SAND).getId();
+        int dirt = (nether ? Material.NETHERRACK : Material.DIRT).getId();
+        int grass = Material.GRASS.getId();
 
         for (int x = 0; x < 16; x++) {
             for (int z = 0; z < 16; z++) {
                 int tx = (chunk.getX() << 4) + x;
                 int tz = (chunk.getZ() << 4) + z;
-                int y = world.getHighestBlockYAt(tx, tz);
+                int y = world.getHighestBlockYAt(tx, tz) - 1;
 
-                Block block = chunk.getBlock(x, y, z).getRelative(BlockFace.DOWN);
-                if (block.getBiome() != Biome.DESERT) {
+                if (world.getBiome(tx, tz) != Biome.DESERT) {
                     continue;
                 }
 
                 // Set top few layers of grass/dirt to sand
                 for (int i = 0; i < 5; ++i) {
-                    Block b2 = block.getRelative(0, -i, 0);
-                    if (b2.getType() == Material.GRASS || b2.getType() == matDirt) {
-                        b2.setType(matSand);
+                    int type = world.getBlockTypeIdAt(tx, y - i, tz);
+                    if (type == grass || type == dirt) {
+                        glowWorld.setBlockTypeIdAndDataAt(tx, y - i, tz, sand, 0);
                     }
                 }
 
                 // Generate cactus
-                if (block.getType() == matSand) {
+                if (world.getBlockTypeIdAt(tx, y, tz) == sand) {
                     if (random.nextInt(100) == 0) {
                         // Make sure it's surrounded by air
-                        Block base = block.getRelative(BlockFace.UP);
-                        if (base.getTypeId() == 0
-                                && base.getRelative(BlockFace.NORTH).getTypeId() == 0
-                                && base.getRelative(BlockFace.EAST).getTypeId() == 0
-                                && base.getRelative(BlockFace.SOUTH).getTypeId() == 0
-                                && base.getRelative(BlockFace.WEST).getTypeId() == 0) {
-                            generateCactus(base, random.nextInt(4));
+                        if (world.getBlockTypeIdAt(tx, y + 1, tz) == 0
+                                && world.getBlockTypeIdAt(tx, y + 1, tz - 1) == 0
+                                && world.getBlockTypeIdAt(tx + 1, y + 1, tz) == 0
+                                && world.getBlockTypeIdAt(tx, y + 1, tz + 1) == 0
+                                && world.getBlockTypeIdAt(tx - 1, y + 1, tz) == 0) {
+                            generateCactus(glowWorld, tx, y + 1, tz, random.nextInt(4));
                         }
                     }
                 }
@@ -59,12 +58,12 @@ public class DesertPopulator extends BlockPopulator {
         }
     }
 
-    private static void generateCactus(Block block, int height) {
-        if (block.getWorld().getEnvironment() == Environment.NETHER) {
-            block.setType(Material.FIRE);
+    private static void generateCactus(GlowWorld world, int x, int y, int z, int height) {
+        if (world.getEnvironment() == Environment.NETHER) {
+            world.setBlockTypeIdAndDataAt(x, y, z, Material.FIRE.getId(), 0);
         } else {
             for (int i = 0; i < height; ++i) {
-                block.getRelative(0, i, 0).setType(Material.CACTUS);
+                world.setBlockTypeIdAndDataAt(x, y + i, z, Material.CACTUS.getId(), 0);
             }
         }
     }
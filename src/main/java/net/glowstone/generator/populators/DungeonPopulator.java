@@ -1,11 +1,10 @@
 package net.glowstone.generator.populators;
 
+import net.glowstone.GlowWorld;
 import net.glowstone.block.BlockProperties;
 import org.bukkit.Chunk;
-import org.bukkit.ChunkSnapshot;
 import org.bukkit.Material;
 import org.bukkit.World;
-import org.bukkit.block.Block;
 import org.bukkit.block.BlockState;
 import org.bukkit.block.Chest;
 import org.bukkit.block.CreatureSpawner;
@@ -24,18 +23,19 @@ public class DungeonPopulator extends BlockPopulator {
 
     @Override
     public void populate(World world, Random random, Chunk source) {
+        GlowWorld glowWorld = (GlowWorld) world;
         SimplexNoiseGenerator noise = new SimplexNoiseGenerator(world);
-        ChunkSnapshot snapshot = source.getChunkSnapshot();
 
         // Randomly turn exposed stone to treasure
         for (int x = 0; x < 16; x++) {
             for (int z = 0; z < 16; z++) {
-                int y = snapshot.getHighestBlockYAt(x, z);
-                Block block = source.getBlock(x, y - 1, z);
+                int bx = (source.getX() << 4) + x;
+                int bz = (source.getZ() << 4) + z;
+                int y = world.getHighestBlockYAt(bx, bz) - 1;
 
-                if (block.getType() == Material.STONE
+                if (world.getBlockTypeIdAt(bx, y, bz) == Material.STONE.getId()
                         && random.nextInt(1024) == 0) {
-                    placeChest(random, block);
+                    placeChest(random, glowWorld, bx, y, bz);
                 }
             }
         }
@@ -55,13 +55,13 @@ public class DungeonPopulator extends BlockPopulator {
                     int sizeY = random.nextInt(6) + 4;
                     int sizeZ = random.nextInt(12) + 5;
 
-                    generateRoom(x, y, z, sizeX, sizeY, sizeZ, world, random);
+                    generateRoom(x, y, z, sizeX, sizeY, sizeZ, glowWorld, random);
                 }
             }
         }
     }
 
-    private static void generateRoom(int posX, int posY, int posZ, int sizeX, int sizeY, int sizeZ, World world, Random random) {
+    private static void generateRoom(int posX, int posY, int posZ, int sizeX, int sizeY, int sizeZ, GlowWorld world, Random random) {
         // Fill with air
         for (int x = posX; x < posX + sizeX; x++) {
             for (int y = posY; y < posY + sizeY; y++) {
@@ -76,7 +76,7 @@ public class DungeonPopulator extends BlockPopulator {
         for (int i = 0; i < numSpawners; ++i) {
             int x = posX + random.nextInt(sizeX);
             int z = posZ + random.nextInt(sizeZ);
-            placeSpawner(random, world.getBlockAt(x, posY, z));
+            placeSpawner(random, world, x, posY, z);
         }
 
         // Chests
@@ -84,7 +84,7 @@ public class DungeonPopulator extends BlockPopulator {
         for (int i = 0; i < numChests; ++i) {
             int x = posX + random.nextInt(sizeX);
             int z = posZ + random.nextInt(sizeZ);
-            placeChest(random, world.getBlockAt(x, posY, z));
+            placeChest(random, world, x, posY, z);
         }
 
         for (int x = posX - 1; x <= posX + sizeX; x++) {
@@ -113,22 +113,22 @@ public class DungeonPopulator extends BlockPopulator {
         return random.nextInt(6) == 0 ? Material.MOSSY_COBBLESTONE : Material.COBBLESTONE;
     }
 
-    private static void placeSpawner(Random random, Block block) {
+    private static void placeSpawner(Random random, GlowWorld world, int x, int y, int z) {
         CreatureType[] types = new CreatureType[]{
             CreatureType.SKELETON, CreatureType.ZOMBIE,
             CreatureType.CREEPER, CreatureType.SPIDER
         };
 
-        block.setType(Material.MOB_SPAWNER);
-        BlockState state = block.getState();
+        world.setBlockTypeIdAndDataAt(x, y, z, Material.MOB_SPAWNER.getId(), 0);
+        BlockState state = world.getBlockAt(x, y, z).getState();
         if (state instanceof CreatureSpawner) {
             ((CreatureSpawner) state).setCreatureType(types[random.nextInt(types.length)]);
         }
     }
 
-    private static void placeChest(Random random, Block block) {
-        block.setType(Material.CHEST);
-        BlockState state = block.getState();
+    private static void placeChest(Random random, GlowWorld world, int x, int y, int z) {
+        world.setBlockTypeIdAndDataAt(x, y, z, Material.CHEST.getId(), 0);
+        BlockState state = world.getBlockAt(x, y, z).getState();
         if (state instanceof Chest) {
             Inventory chest = ((Chest) state).getInventory();
 
@@ -198,16 +198,17 @@ public class DungeonPopulator extends BlockPopulator {
         }
     }
 
-    private static void placeBlock(World world, int x, int y, int z, Material mat) {
+    private static void placeBlock(GlowWorld world, int x, int y, int z, Material mat) {
         if (canPlaceBlock(world, x, y, z) && BlockProperties.get(mat) != null) {
-            world.getBlockAt(x, y, z).setType(mat);
+            world.setBlockTypeIdAndDataAt(x, y, z, mat.getId(), 0);
         }
     }
 
-    private static boolean canPlaceBlock(World world, int x, int y, int z) {
-        Block block = world.getBlockAt(x, y, z);
-        return !block.isLiquid() && block.getType() != Material.MOB_SPAWNER
-                && block.getType() != Material.CHEST;
+    private static boolean canPlaceBlock(GlowWorld world, int x, int y, int z) {
+        Material type = Material.getMaterial(world.getBlockTypeIdAt(x, y, z));
+        return type != Material.WATER && type != Material.STATIONARY_WATER
+                && type != Material.LAVA && type != Material.STATIONARY_LAVA
+                && type != Material.MOB_SPAWNER && type != Material.CHEST;
     }
     
 }
@@ -1,17 +1,13 @@
 package net.glowstone.generator.populators;
 
+import net.glowstone.GlowWorld;
 import org.bukkit.Chunk;
-import org.bukkit.ChunkSnapshot;
 import org.bukkit.Material;
 import org.bukkit.World;
 import org.bukkit.World.Environment;
 import org.bukkit.block.Biome;
-import org.bukkit.block.Block;
 import org.bukkit.generator.BlockPopulator;
-import org.bukkit.util.BlockVector;
-import org.bukkit.util.Vector;
 
-import java.util.ArrayList;
 import java.util.Random;
 
 /**
@@ -25,60 +21,60 @@ public class LakePopulator extends BlockPopulator {
             return;
         }
 
-        ChunkSnapshot snapshot = source.getChunkSnapshot();
-
-        int rx16 = random.nextInt(16);
-        int rx = (source.getX() << 4) + rx16;
-        int rz16 = random.nextInt(16);
-        int rz = (source.getZ() << 4) + rz16;
-        if (snapshot.getHighestBlockYAt(rx16, rz16) < 4) {
+        int rx = (source.getX() << 4) + random.nextInt(16);
+        int rz = (source.getZ() << 4) + random.nextInt(16);
+        int top = world.getHighestBlockYAt(rx, rz);
+        if (top < 4) {
             return;
         }
-        int ry = 6 + random.nextInt(snapshot.getHighestBlockYAt(rx16, rz16) - 3);
+        int ry = 6 + random.nextInt(top - 3);
         int radius = 2 + random.nextInt(3);
 
         Material liquidMaterial = Material.LAVA;
         Material solidMaterial = Material.OBSIDIAN;
 
         if (random.nextInt(10) < 3) {
-            ry = snapshot.getHighestBlockYAt(rx16, rz16) - 1;
+            ry = top - 1;
         }
         if (random.nextInt(96) < ry && world.getEnvironment() != Environment.NETHER) {
             liquidMaterial = Material.WATER;
             solidMaterial = Material.WATER;
-        } else if (world.getBlockAt(rx, ry, rz).getBiome() == Biome.FOREST) {
+        } else if (world.getBiome(rx, rz) == Biome.FOREST) {
             return;
         }
 
-        ArrayList<Block> lakeBlocks = new ArrayList<Block>();
+        GlowWorld glowWorld = (GlowWorld) world;
         for (int i = -1; i < 4; i++) {
-            Vector center = new BlockVector(rx, ry - i, rz);
+            int y = ry - i;
             for (int x = -radius; x <= radius; x++) {
                 for (int z = -radius; z <= radius; z++) {
-                    Vector position = center.clone().add(new Vector(x, 0, z));
-                    if (center.distance(position) <= radius + 0.5 - i) {
-                        lakeBlocks.add(world.getBlockAt(position.toLocation(world)));
+                    if (Math.sqrt(x * x + z * z) > radius + 0.5 - i) {
+                        continue;
                     }
-                }
-            }
-        }
-
-        for (Block block : lakeBlocks) {
-            // Ensure it's not air or liquid already
-            if (!block.isEmpty() && !block.isLiquid()) {
-                if (block.getY() == ry + 1) {
-                    if (random.nextBoolean()) {
-                        block.setType(Material.AIR);
+                    // Ensure it's not air or liquid already
+                    int type = world.getBlockTypeIdAt(rx + x, y, rz + z);
+                    if (type == 0 || isLiquid(type)) {
+                        continue;
+                    }
+                    if (y == ry + 1) {
+                        if (random.nextBoolean()) {
+                            glowWorld.setBlockTypeIdAndDataAt(rx + x, y, rz + z, 0, 0);
+                        }
+                    } else if (y == ry) {
+                        glowWorld.setBlockTypeIdAndDataAt(rx + x, y, rz + z, 0, 0);
+                    } else if (random.nextInt(10) > 1) {
+                        glowWorld.setBlockTypeIdAndDataAt(rx + x, y, rz + z, liquidMaterial.getId(), 0);
+                    } else {
+                        glowWorld.setBlockTypeIdAndDataAt(rx + x, y, rz + z, solidMaterial.getId(), 0);
                     }
-                } else if (block.getY() == ry) {
-                    block.setType(Material.AIR);
-                } else if (random.nextInt(10) > 1) {
-                    block.setType(liquidMaterial);
-                } else {
-                    block.setType(solidMaterial);
                 }
             }
         }
     }
+
+    private static boolean isLiquid(int type) {
+        return type == Material.WATER.getId() || type == Material.STATIONARY_WATER.getId()
+                || type == Material.LAVA.getId() || type == Material.STATIONARY_LAVA.getId();
+    }
     
 }
@@ -1,11 +1,10 @@
 package net.glowstone.generator.populators;
 
+import net.glowstone.GlowWorld;
 import org.bukkit.Chunk;
 import org.bukkit.Material;
 import org.bukkit.World;
 import org.bukkit.block.Biome;
-import org.bukkit.block.Block;
-import org.bukkit.block.BlockFace;
 import org.bukkit.generator.BlockPopulator;
 
 import java.util.Random;
@@ -22,22 +21,21 @@ public class MushroomPopulator extends BlockPopulator {
             return;
         }
 
-        int rx = 2 + random.nextInt(12);
-        int rz = 2 + random.nextInt(12);
-        Block block = source.getBlock(rx, world.getHighestBlockYAt((source.getX() << 4)
-                + rx, (source.getZ() << 4) + rz), rz);
-        if (block.getBiome() != Biome.TAIGA) {
+        int rx = (source.getX() << 4) + 2 + random.nextInt(12);
+        int rz = (source.getZ() << 4) + 2 + random.nextInt(12);
+        int ry = world.getHighestBlockYAt(rx, rz);
+        if (world.getBiome(rx, rz) != Biome.TAIGA) {
             return;
         }
-        if (block.getRelative(BlockFace.DOWN).getType() != Material.GRASS
-                && block.getRelative(BlockFace.DOWN).getType() != Material.DIRT) {
+        int below = world.getBlockTypeIdAt(rx, ry - 1, rz);
+        if (below != Material.GRASS.getId() && below != Material.DIRT.getId()) {
             return;
         }
 
+        GlowWorld glowWorld = (GlowWorld) world;
         int size = 2 + random.nextInt(4);
         for (int i = 0; i <= size + 1; i++) {
-            Block mushroom = block.getRelative(0, i, 0);
-            mushroom.setTypeIdAndData(Material.LOG.getId(), (byte) 2, true);
+            glowWorld.setBlockTypeIdAndDataAt(rx, ry + i, rz, Material.LOG.getId(), 2);
 
             if (i >= size) {
                 int diff = i - size;
@@ -47,7 +45,7 @@ public class MushroomPopulator extends BlockPopulator {
                         if (x * x + z * z < (size - diff) * (size - diff)
                                 && (i > size || x * x + z * z + 1 > (size - diffNext)
                                 * (size - diffNext))) {
-                            mushroom.getRelative(x, 0, z).setType(Material.STONE);
+                            glowWorld.setBlockTypeIdAndDataAt(rx + x, ry + i, rz + z, Material.STONE.getId(), 0);
                         }
                     }
                 }
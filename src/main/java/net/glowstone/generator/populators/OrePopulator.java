@@ -1,9 +1,9 @@
 package net.glowstone.generator.populators;
 
+import net.glowstone.GlowWorld;
 import org.bukkit.Chunk;
 import org.bukkit.Material;
 import org.bukkit.World;
-import org.bukkit.block.Block;
 import org.bukkit.generator.BlockPopulator;
 
 import java.util.Random;
@@ -25,12 +25,12 @@ public class OrePopulator extends BlockPopulator {
     public void populate(World world, Random random, Chunk source) {
         for (int i = 0; i < type.length; i++) {
             for (int j = 0; j < iterations[i]; j++) {
-                makeOres(source, random, random.nextInt(16), random.nextInt(maxHeight[i]), random.nextInt(16), amount[i], type[i]);
+                makeOres((GlowWorld) world, source, random, random.nextInt(16), random.nextInt(maxHeight[i]), random.nextInt(16), amount[i], type[i]);
             }
         }
     }
 
-    private static void makeOres(Chunk source, Random random, int originX, int originY, int originZ, int amount, Material type) {
+    private static void makeOres(GlowWorld world, Chunk source, Random random, int originX, int originY, int originZ, int amount, Material type) {
         for (int i = 0; i < amount; i++) {
             int x = originX + random.nextInt(amount / 2) - amount / 4;
             int y = originY + random.nextInt(amount / 4) - amount / 8;
@@ -40,9 +40,10 @@ public class OrePopulator extends BlockPopulator {
             if (y > 127 || y < 0) {
                 continue;
             }
-            Block block = source.getBlock(x, y, z);
-            if (block.getType() == Material.STONE) {
-                block.setTypeId(type.getId(), false);
+            int bx = (source.getX() << 4) + x;
+            int bz = (source.getZ() << 4) + z;
+            if (world.getBlockTypeIdAt(bx, y, bz) == Material.STONE.getId()) {
+                world.setBlockTypeIdAndDataAt(bx, y, bz, type.getId(), 0);
             }
         }
     }
@@ -1,12 +1,10 @@
 package net.glowstone.generator.populators;
 
+import net.glowstone.GlowWorld;
 import org.bukkit.Chunk;
-import org.bukkit.ChunkSnapshot;
 import org.bukkit.Material;
 import org.bukkit.World;
 import org.bukkit.block.Biome;
-import org.bukkit.block.Block;
-import org.bukkit.block.BlockFace;
 import org.bukkit.generator.BlockPopulator;
 
 import java.util.Random;
@@ -19,36 +17,36 @@ public class SnowPopulator extends BlockPopulator {
 
     @Override
     public void populate(World world, Random random, Chunk source) {
+        GlowWorld glowWorld = (GlowWorld) world;
         int chunkX = source.getX() * 16;
         int chunkZ = source.getZ() * 16;
-        ChunkSnapshot snapshot = source.getChunkSnapshot();
         for (int x = 0; x < 16; x++) {
             for (int z = 0; z < 16; z++) {
-                Biome biome = world.getBiome(x + chunkX, z + chunkZ);
+                int bx = x + chunkX, bz = z + chunkZ;
+                Biome biome = world.getBiome(bx, bz);
                 if (biome != Biome.TAIGA) {
                     continue;
                 }
 
-                int y = snapshot.getHighestBlockYAt(x, z);
-                if (source.getBlock(x, y, z).getType() == Material.AIR) {
+                int y = world.getHighestBlockYAt(bx, bz);
+                if (world.getBlockTypeIdAt(bx, y, bz) == 0) {
                     y--;
                 }
 
-                Block block = source.getBlock(x, y, z);
-                switch (block.getType()) {
+                switch (Material.getMaterial(world.getBlockTypeIdAt(bx, y, bz))) {
                     case WATER:
                     case STATIONARY_WATER:
-                        if (block.getData() == 0) {
-                            block.setType(Material.ICE);
+                        if (glowWorld.getBlockDataAt(bx, y, bz) == 0) {
+                            glowWorld.setBlockTypeIdAndDataAt(bx, y, bz, Material.ICE.getId(), 0);
                         }
                         break;
                     case LAVA:
                     case STATIONARY_LAVA:
                         break;
                     case DIRT:
-                        block.setType(Material.GRASS);
+                        glowWorld.setBlockTypeIdAndDataAt(bx, y, bz, Material.GRASS.getId(), 0);
                     default:
-                        block.getRelative(BlockFace.UP).setType(Material.SNOW);
+                        glowWorld.setBlockTypeIdAndDataAt(bx, y + 1, bz, Material.SNOW.getId(), 0);
                         break;
                 }
             }
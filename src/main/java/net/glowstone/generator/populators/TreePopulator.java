@@ -1,15 +1,17 @@
 package net.glowstone.generator.populators;
 
+import net.glowstone.GlowWorld;
 import org.bukkit.Chunk;
 import org.bukkit.Material;
 import org.bukkit.World;
-import org.bukkit.block.Block;
 import org.bukkit.generator.BlockPopulator;
 
 import java.util.Random;
 
 /**
- * BlockPopulator that adds trees based on the biome.
+ * BlockPopulator that adds trees based on the biome. Trees are written
+ * straight into the chunks without physics, and reach at most two blocks
+ * outside the source chunk.
  */
 public class TreePopulator extends BlockPopulator {
 
@@ -28,7 +30,7 @@ public class TreePopulator extends BlockPopulator {
             height = 5 + random.nextInt(3);
         }
 
-        switch (world.getBlockAt(centerX, 0, centerZ).getBiome()) {
+        switch (world.getBiome(centerX, centerZ)) {
             case FOREST:
                 chance = 160;
                 multiplier = 10;
@@ -73,6 +75,7 @@ public class TreePopulator extends BlockPopulator {
                 return;
         }
 
+        final GlowWorld glowWorld = (GlowWorld) world;
         final int LEAVES = Material.LEAVES.getId();
 
         for (int i = 0; i < multiplier; i++) {
@@ -80,65 +83,64 @@ public class TreePopulator extends BlockPopulator {
             centerZ = (source.getZ() << 4) + random.nextInt(16);
             if (random.nextInt(300) < chance) {
                 int centerY = world.getHighestBlockYAt(centerX, centerZ) - 1;
-                Block sourceBlock = world.getBlockAt(centerX, centerY, centerZ);
 
-                if (sourceBlock.getType() == Material.GRASS) {
-                    world.getBlockAt(centerX, centerY + height + 1, centerZ).setTypeIdAndData(LEAVES, data, true);
+                if (world.getBlockTypeIdAt(centerX, centerY, centerZ) == Material.GRASS.getId()) {
+                    glowWorld.setBlockTypeIdAndDataAt(centerX, centerY + height + 1, centerZ, LEAVES, data);
                     for (int j = 0; j < 4; j++) {
-                        world.getBlockAt(centerX, centerY + height + 1 - j, centerZ - 1).setTypeIdAndData(LEAVES, data, true);
-                        world.getBlockAt(centerX, centerY + height + 1 - j, centerZ + 1).setTypeIdAndData(LEAVES, data, true);
-                        world.getBlockAt(centerX - 1, centerY + height + 1 - j, centerZ).setTypeIdAndData(LEAVES, data, true);
-                        world.getBlockAt(centerX + 1, centerY + height + 1 - j, centerZ).setTypeIdAndData(LEAVES, data, true);
+                        glowWorld.setBlockTypeIdAndDataAt(centerX, centerY + height + 1 - j, centerZ - 1, LEAVES, data);
+                        glowWorld.setBlockTypeIdAndDataAt(centerX, centerY + height + 1 - j, centerZ + 1, LEAVES, data);
+                        glowWorld.setBlockTypeIdAndDataAt(centerX - 1, centerY + height + 1 - j, centerZ, LEAVES, data);
+                        glowWorld.setBlockTypeIdAndDataAt(centerX + 1, centerY + height + 1 - j, centerZ, LEAVES, data);
                     }
 
                     if (random.nextBoolean()) {
-                        world.getBlockAt(centerX + 1, centerY + height, centerZ + 1).setTypeIdAndData(LEAVES, data, true);
+                        glowWorld.setBlockTypeIdAndDataAt(centerX + 1, centerY + height, centerZ + 1, LEAVES, data);
                     }
                     if (random.nextBoolean()) {
-                        world.getBlockAt(centerX + 1, centerY + height, centerZ - 1).setTypeIdAndData(LEAVES, data, true);
+                        glowWorld.setBlockTypeIdAndDataAt(centerX + 1, centerY + height, centerZ - 1, LEAVES, data);
                     }
                     if (random.nextBoolean()) {
-                        world.getBlockAt(centerX - 1, centerY + height, centerZ + 1).setTypeIdAndData(LEAVES, data, true);
+                        glowWorld.setBlockTypeIdAndDataAt(centerX - 1, centerY + height, centerZ + 1, LEAVES, data);
                     }
                     if (random.nextBoolean()) {
-                        world.getBlockAt(centerX - 1, centerY + height, centerZ - 1).setTypeIdAndData(LEAVES, data, true);
+                        glowWorld.setBlockTypeIdAndDataAt(centerX - 1, centerY + height, centerZ - 1, LEAVES, data);
                     }
 
-                    world.getBlockAt(centerX + 1, centerY + height - 1, centerZ + 1).setTypeIdAndData(LEAVES, data, true);
-                    world.getBlockAt(centerX + 1, centerY + height - 1, centerZ - 1).setTypeIdAndData(LEAVES, data, true);
-                    world.getBlockAt(centerX - 1, centerY + height - 1, centerZ + 1).setTypeIdAndData(LEAVES, data, true);
-                    world.getBlockAt(centerX - 1, centerY + height - 1, centerZ - 1).setTypeIdAndData(LEAVES, data, true);
-                    world.getBlockAt(centerX + 1, centerY + height - 2, centerZ + 1).setTypeIdAndData(LEAVES, data, true);
-                    world.getBlockAt(centerX + 1, centerY + height - 2, centerZ - 1).setTypeIdAndData(LEAVES, data, true);
-                    world.getBlockAt(centerX - 1, centerY + height - 2, centerZ + 1).setTypeIdAndData(LEAVES, data, true);
-                    world.getBlockAt(centerX - 1, centerY + height - 2, centerZ - 1).setTypeIdAndData(LEAVES, data, true);
+                    glowWorld.setBlockTypeIdAndDataAt(centerX + 1, centerY + height - 1, centerZ + 1, LEAVES, data);
+                    glowWorld.setBlockTypeIdAndDataAt(centerX + 1, centerY + height - 1, centerZ - 1, LEAVES, data);
+                    glowWorld.setBlockTypeIdAndDataAt(centerX - 1, centerY + height - 1, centerZ + 1, LEAVES, data);
+                    glowWorld.setBlockTypeIdAndDataAt(centerX - 1, centerY + height - 1, centerZ - 1, LEAVES, data);
+                    glowWorld.setBlockTypeIdAndDataAt(centerX + 1, centerY + height - 2, centerZ + 1, LEAVES, data);
+                    glowWorld.setBlockTypeIdAndDataAt(centerX + 1, centerY + height - 2, centerZ - 1, LEAVES, data);
+                    glowWorld.setBlockTypeIdAndDataAt(centerX - 1, centerY + height - 2, centerZ + 1, LEAVES, data);
+                    glowWorld.setBlockTypeIdAndDataAt(centerX - 1, centerY + height - 2, centerZ - 1, LEAVES, data);
 
                     for (int j = 0; j < 2; j++) {
                         for (int k = -2; k <= 2; k++) {
                             for (int l = -2; l <= 2; l++) {
-                                world.getBlockAt(centerX + k, centerY + height - 1 - j, centerZ + l).setTypeIdAndData(LEAVES, data, true);
+                                glowWorld.setBlockTypeIdAndDataAt(centerX + k, centerY + height - 1 - j, centerZ + l, LEAVES, data);
                             }
                         }
                     }
 
                     for (int j = 0; j < 2; j++) {
                         if (random.nextBoolean()) {
-                            world.getBlockAt(centerX + 2, centerY + height - 1 - j, centerZ + 2).setTypeIdAndData(0, (byte) 0, true);
+                            glowWorld.setBlockTypeIdAndDataAt(centerX + 2, centerY + height - 1 - j, centerZ + 2, 0, 0);
                         }
                         if (random.nextBoolean()) {
-                            world.getBlockAt(centerX + 2, centerY + height - 1 - j, centerZ - 2).setTypeIdAndData(0, (byte) 0, true);
+                            glowWorld.setBlockTypeIdAndDataAt(centerX + 2, centerY + height - 1 - j, centerZ - 2, 0, 0);
                         }
                         if (random.nextBoolean()) {
-                            world.getBlockAt(centerX - 2, centerY + height - 1 - j, centerZ + 2).setTypeIdAndData(0, (byte) 0, true);
+                            glowWorld.setBlockTypeIdAndDataAt(centerX - 2, centerY + height - 1 - j, centerZ + 2, 0, 0);
                         }
                         if (random.nextBoolean()) {
-                            world.getBlockAt(centerX - 2, centerY + height - 1 - j, centerZ - 2).setTypeIdAndData(0, (byte) 0, true);
+                            glowWorld.setBlockTypeIdAndDataAt(centerX - 2, centerY + height - 1 - j, centerZ - 2, 0, 0);
                         }
                     }
 
                     // Trunk
                     for (int y = 1; y <= height; y++) {
-                        world.getBlockAt(centerX, centerY + y, centerZ).setTypeIdAndData(Material.LOG.getId(), data, true);
+                        glowWorld.setBlockTypeIdAndDataAt(centerX, centerY + y, centerZ, Material.LOG.getId(), data);
                     }
                 }
             }
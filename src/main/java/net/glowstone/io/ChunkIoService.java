@@ -22,6 +22,16 @@ public interface ChunkIoService {
      */
     public boolean read(GlowChunk chunk, int x, int z) throws IOException;
 
+    /**
+     * Reads and decodes a single chunk without installing it into its
+     * GlowChunk. This must be safe to call from any thread.
+     * @param x The X coordinate.
+     * @param z The Z coordinate.
+     * @return The prepared chunk, or null if the chunk is not stored.
+     * @throws IOException if an I/O error occurs.
+     */
+    public PreparedChunk prepare(int x, int z) throws IOException;
+
     /**
      * Writes a single chunk.
      * @param x The X coordinate.
@@ -31,6 +41,23 @@ public interface ChunkIoService {
      */
     public void write(int x, int z, GlowChunk chunk) throws IOException;
 
+    /**
+     * Captures a loaded chunk's contents so that it can be serialized and
+     * written later from any thread. Must be called from the thread which
+     * owns the world.
+     * @param chunk The {@link GlowChunk}.
+     * @return The captured chunk.
+     */
+    public PreparedSave capture(GlowChunk chunk);
+
+    /**
+     * Rewrites the stored chunks to reclaim space left unused between them.
+     * This must be safe to call from any thread while the world is in use.
+     * @return The number of bytes reclaimed.
+     * @throws IOException if an I/O error occurs.
+     */
+    public long compact() throws IOException;
+
     /**
      * Unloads the service, to clean up excess stuff.
      * @throws IOException
@@ -0,0 +1,19 @@
+package net.glowstone.io;
+
+import net.glowstone.GlowChunk;
+
+/**
+ * A chunk which has been read from storage and decoded, but not yet
+ * installed into its {@link GlowChunk}. Preparing a chunk can be done on any
+ * thread, leaving only the installation for the thread which owns the world.
+ */
+public interface PreparedChunk {
+
+    /**
+     * Install the decoded data into the given chunk, which must not already
+     * be loaded.
+     * @param chunk The GlowChunk to install into.
+     */
+    public void install(GlowChunk chunk);
+
+}
@@ -0,0 +1,18 @@
+package net.glowstone.io;
+
+import java.io.IOException;
+
+/**
+ * A copy of a chunk's contents which has been captured for saving, but not
+ * yet serialized or written. Capturing must be done on the thread which
+ * owns the world, after which the save can be written from any thread.
+ */
+public interface PreparedSave {
+
+    /**
+     * Serialize, compress and store the captured chunk.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void write() throws IOException;
+
+}
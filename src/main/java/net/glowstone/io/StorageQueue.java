@@ -1,112 +1,245 @@
 package net.glowstone.io;
 
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
+import net.glowstone.GlowServer;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Runs storage operations on a fixed pool of I/O threads. Operations are
+ * grouped by {@link StorageOperation#getGroup()}: operations in the same
+ * group run one at a time in the order they were queued, while different
+ * groups run concurrently. Operations which are not parallel all share a
+ * single group. An operation which does not allow multiple copies is
+ * dropped if one with the same name is already waiting in its group.
+ * <p>
+ * Once the number of waiting operations reaches the capacity, queueing
+ * blocks until the I/O threads catch up, except on the I/O threads
+ * themselves.
+ */
+public class StorageQueue {
+
+    /**
+     * The group used for operations which are not parallel.
+     */
+    private static final String SERIAL_GROUP = "";
 
-// Todo ditch this and use a light wrapper class around the scheduler
-public class StorageQueue extends Thread {
-    private final BlockingQueue<StorageOperation> pending = new LinkedBlockingQueue<StorageOperation>();
-    private final List<ParallelTaskThread> active = new ArrayList<ParallelTaskThread>();
+    /**
+     * How long to wait for queued operations to finish when ending.
+     */
+    private static final int END_TIMEOUT = 10;
+
+    private final int threads;
+    private final int capacity;
+
+    private final Map<String, Group> groups = new HashMap<String, Group>();
+    private ExecutorService executor;
     private boolean running = false;
 
-    @Override
-    public void run() {
-        StorageOperation op;
-        while (!isInterrupted()) {
-            try {
-                if ((op = pending.take()) != null) {
-                    op.run();
-                }
-            } catch (InterruptedException e) {
-                break;
-            }
+    private int depth = 0;
+    private int peakDepth = 0;
+    private long completed = 0;
+    private long coalesced = 0;
+
+    public StorageQueue() {
+        this(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())), 4096);
+    }
+
+    /**
+     * Creates a new storage queue.
+     * @param threads The number of I/O threads.
+     * @param capacity The number of waiting operations before queueing blocks.
+     */
+    public StorageQueue(int threads, int capacity) {
+        if (threads <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("threads and capacity must be positive");
         }
-        running = false;
+        this.threads = threads;
+        this.capacity = capacity;
     }
 
-    public synchronized void queue(StorageOperation op) {
-        if (!running) {
-                throw new IllegalStateException(
-                        "Cannot queue tasks while thread is not running");
+    /**
+     * Start the I/O threads.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
         }
-        if (op.isParallel()) {
-            synchronized (active) {
-                ParallelTaskThread thread = new ParallelTaskThread(op);
-                if (!active.contains(thread)) {
-                   thread.start();
-                } else if (op.queueMultiple()) {
-                    active.get(active.indexOf(thread)).addOperation(op);
-                }
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                return new Worker(runnable, "Storage Thread " + threadCount.incrementAndGet());
             }
-        } else {
-            synchronized (pending) {
-                if (op.queueMultiple() || !pending.contains(op)) {
-                    pending.add(op);
+        });
+        running = true;
+    }
+
+    /**
+     * Queue an operation to be run on the I/O threads.
+     * @param op The operation.
+     * @throws IllegalStateException if the queue is not running.
+     */
+    public synchronized void queue(StorageOperation op) {
+        if (!(Thread.currentThread() instanceof Worker)) {
+            while (running && depth >= capacity) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
                 }
             }
         }
+        if (!running) {
+            throw new IllegalStateException("Cannot queue tasks while thread is not running");
+        }
+
+        String key = op.isParallel() ? op.getGroup() : SERIAL_GROUP;
+        Group group = groups.get(key);
+        if (group == null) {
+            group = new Group(key);
+            groups.put(key, group);
+        }
+
+        if (!op.queueMultiple() && !group.names.add(op.getOperation())) {
+            // an identical operation is already waiting
+            coalesced++;
+            return;
+        }
+
+        group.ops.add(op);
+        depth++;
+        peakDepth = Math.max(peakDepth, depth);
+        if (!group.scheduled) {
+            group.scheduled = true;
+            executor.execute(group);
+        }
     }
 
+    /**
+     * Stop accepting operations, and wait a short while for the waiting
+     * operations to finish.
+     */
     public void end() {
-        interrupt();
-        running = false;
-        pending.clear();
-        synchronized (active) {
-            for (ParallelTaskThread thread : active) {
-                if (thread != null) {
-                    thread.interrupt();
-                    try {
-                        thread.join(500);
-                    } catch (InterruptedException e) {
-                    }
-                }
+        ExecutorService executor;
+        synchronized (this) {
+            if (!running) {
+                return;
             }
+            running = false;
+            executor = this.executor;
+            notifyAll();
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(END_TIMEOUT, TimeUnit.SECONDS)) {
+                GlowServer.logger.warning("Storage operations did not finish in time");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
         }
     }
 
-    @Override
-    public void start() {
-        running = true;
-        super.start();
+    /**
+     * Get how many operations are waiting to be run.
+     * @return The current queue depth.
+     */
+    public synchronized int getQueueDepth() {
+        return depth;
+    }
+
+    /**
+     * Get the largest number of operations which have been waiting at once.
+     * @return The peak queue depth.
+     */
+    public synchronized int getPeakQueueDepth() {
+        return peakDepth;
+    }
+
+    /**
+     * Get how many operations have been run.
+     * @return The number of completed operations.
+     */
+    public synchronized long getCompletedCount() {
+        return completed;
+    }
+
+    /**
+     * Get how many operations were dropped because an identical operation
+     * was already waiting.
+     * @return The number of coalesced operations.
+     */
+    public synchronized long getCoalescedCount() {
+        return coalesced;
     }
 
-    class ParallelTaskThread extends Thread {
-        private final Queue<StorageOperation> ops = new LinkedList<StorageOperation>();
-        public ParallelTaskThread(StorageOperation op) {
-            setDaemon(false);
-            ops.add(op);
+    /**
+     * Take the next operation from a group, or mark the group idle and
+     * drop it if there are none left.
+     */
+    private synchronized StorageOperation next(Group group) {
+        StorageOperation op = group.ops.poll();
+        if (op == null) {
+            group.scheduled = false;
+            groups.remove(group.key);
+            return null;
+        }
+        if (!op.queueMultiple()) {
+            group.names.remove(op.getOperation());
+        }
+        depth--;
+        notifyAll();
+        return op;
+    }
+
+    private synchronized void finished() {
+        completed++;
+    }
+
+    /**
+     * The operations waiting in one group, which runs them in order on
+     * whichever I/O thread picks it up.
+     */
+    private final class Group implements Runnable {
+        private final String key;
+        private final Queue<StorageOperation> ops = new ArrayDeque<StorageOperation>();
+        private final Set<String> names = new HashSet<String>();
+        private boolean scheduled = false;
+
+        public Group(String key) {
+            this.key = key;
         }
 
-        @Override
         public void run() {
-            active.add(this);
-            try {
-                StorageOperation op;
-                while (!isInterrupted() && (op = ops.poll()) != null) {
+            StorageOperation op;
+            while ((op = next(this)) != null) {
+                try {
                     op.run();
+                } catch (Throwable t) {
+                    GlowServer.logger.log(Level.SEVERE, "Error in storage operation " + op.getOperation() + " for " + key, t);
                 }
-            } finally {
-                active.remove(this);
+                finished();
             }
         }
+    }
 
-        public void addOperation(StorageOperation op) {
-            if (!isAlive() || isInterrupted())
-                throw new IllegalStateException("Thread is not running");
-            ops.offer(op);
-        }
-
-        @Override
-        public synchronized boolean equals(Object other) {
-            if (!(other instanceof ParallelTaskThread)) {
-                return false;
-            }
-            StorageOperation op = ops.peek();
-            return op != null && op.equals(((ParallelTaskThread) other).ops.peek());
+    /**
+     * An I/O thread, which may queue operations without blocking.
+     */
+    private static final class Worker extends Thread {
+        public Worker(Runnable runnable, String name) {
+            super(runnable, name);
         }
     }
 }
@@ -6,16 +6,28 @@ import net.glowstone.GlowChunkSnapshot;
 import net.glowstone.GlowServer;
 import net.glowstone.block.GlowBlockState;
 import net.glowstone.io.ChunkIoService;
+import net.glowstone.io.PreparedChunk;
+import net.glowstone.io.PreparedSave;
 import net.glowstone.io.blockstate.BlockStateStore;
 import net.glowstone.io.blockstate.BlockStateStoreLookupService;
+import net.glowstone.util.NibbleArray;
 import net.glowstone.util.nbt.*;
 import org.bukkit.block.Biome;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * An implementation of the {@link ChunkIoService} which reads and writes Anvil maps,
@@ -38,22 +50,103 @@ public final class AnvilChunkIoService implements ChunkIoService {
      */
     private final RegionFileCache cache = new RegionFileCache(".mca");
 
+    /**
+     * How large the journal may grow before it is checkpointed.
+     */
+    private static final long CHECKPOINT_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Whether worlds opened from now on should journal their chunk saves.
+     */
+    private static volatile boolean journaled = true;
+
+    /**
+     * The journal chunk saves are appended to before reaching the regions,
+     * or null if saves are not journaled.
+     */
+    private volatile ChunkJournal journal;
+
+    /**
+     * The latest compressed data of each chunk which has been journaled but
+     * not yet written to its region, which reads are served from.
+     */
+    private final Map<Long, byte[]> deferred = new ConcurrentHashMap<Long, byte[]>();
+
+    /**
+     * Held shared while a save is journaled, and exclusively while the
+     * deferred chunks are written to the regions and the journal is emptied.
+     */
+    private final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+
     // TODO: consider the session.lock file
 
     public AnvilChunkIoService(File dir) {
         this.dir = dir;
+
+        // finish any saves which were journaled but may not have reached the regions
+        File file = journalFile();
+        try {
+            int replayed = ChunkJournal.replay(file, new ChunkJournal.Replay() {
+                public void chunk(int x, int z, byte[] data) throws IOException {
+                    writeRegion(x, z, data, data.length);
+                }
+            });
+            if (replayed > 0) {
+                cache.force();
+                GlowServer.logger.info("Replayed " + replayed + " chunk saves from the journal of " + dir.getName());
+            }
+        } catch (IOException e) {
+            // move the journal aside before anything else reaches the regions,
+            // so it is never replayed over newer saves
+            File corrupt = corruptJournalFile();
+            try {
+                Files.move(file.toPath(), corrupt.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex) {
+                throw new IllegalStateException("Could not move aside the unreplayable chunk journal of " + dir.getName(), ex);
+            }
+            GlowServer.logger.log(Level.SEVERE, "Error while replaying the chunk journal of " + dir.getName() + ", moved it to " + corrupt.getName(), e);
+        }
+
+        if (journaled) {
+            try {
+                journal = new ChunkJournal(file);
+            } catch (IOException e) {
+                GlowServer.logger.log(Level.SEVERE, "Could not open the chunk journal of " + dir.getName() + ", saving without it", e);
+            }
+        } else if (file.exists() && !file.delete()) {
+            GlowServer.logger.warning("Could not delete the chunk journal of " + dir.getName());
+        }
+    }
+
+    /**
+     * Set whether worlds opened from now on should journal their chunk
+     * saves. Journals left from before are replayed either way.
+     * @param journaled Whether to journal chunk saves.
+     */
+    public static void setJournaled(boolean journaled) {
+        AnvilChunkIoService.journaled = journaled;
     }
 
-    @SuppressWarnings("unchecked")
     public boolean read(GlowChunk chunk, int x, int z) throws IOException {
-        RegionFile region = cache.getRegionFile(dir, x, z);
-        int regionX = x & (REGION_SIZE - 1);
-        int regionZ = z & (REGION_SIZE - 1);
-        if (!region.hasChunk(regionX, regionZ)) {
+        PreparedChunk prepared = prepare(x, z);
+        if (prepared == null) {
             return false;
         }
+        prepared.install(chunk);
+        return true;
+    }
 
-        DataInputStream in = region.getChunkDataInputStream(regionX, regionZ);
+    public PreparedChunk prepare(int x, int z) throws IOException {
+        DataInputStream in;
+        byte[] journaled = deferred.get(GlowChunk.Key.toLong(x, z));
+        if (journaled != null) {
+            in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(journaled)));
+        } else {
+            in = cache.getChunkDataInputStream(dir, x, z);
+            if (in == null) {
+                return null;
+            }
+        }
 
         NBTInputStream nbt = new NBTInputStream(in, false);
         CompoundTag root = (CompoundTag) nbt.readTag();
@@ -69,58 +162,65 @@ public final class AnvilChunkIoService implements ChunkIoService {
             byte[] data = sectionTag.get("Data", ByteArrayTag.class);
             byte[] blockLight = sectionTag.get("BlockLight", ByteArrayTag.class);
             byte[] skyLight = sectionTag.get("SkyLight", ByteArrayTag.class);
-            sections[y] = new ChunkSection(types, expand(data), expand(skyLight), expand(blockLight));
+            sections[y] = new ChunkSection(types, new NibbleArray(data), new NibbleArray(skyLight), new NibbleArray(blockLight));
+        }
+
+        // read the height map, which the chunk checks against the sections
+        int[] heightMap = null;
+        if (levelTag.is("HeightMap", IntArrayTag.class)) {
+            heightMap = levelTag.get("HeightMap", IntArrayTag.class);
         }
 
-        // initialize the chunk
-        chunk.initializeSections(sections);
-        chunk.setPopulated(levelTag.get("TerrainPopulated", ByteTag.class) == 1);
+        boolean populated = levelTag.get("TerrainPopulated", ByteTag.class) == 1;
 
         // read "Biomes" eventually
         // read "Entities" eventually
-        // read "HeightMap" if we need to
-
-        // read tile entities
-        List<CompoundTag> storedTileEntities = levelTag.getList("TileEntities", CompoundTag.class);
-        for (CompoundTag tileEntityTag : storedTileEntities) {
-            GlowBlockState state = chunk.getBlock(
-                    tileEntityTag.get("x", IntTag.class),
-                    tileEntityTag.get("y", IntTag.class),
-                    tileEntityTag.get("z", IntTag.class)).getState();
-            if (state.getClass() != GlowBlockState.class) {
-                BlockStateStore store = BlockStateStoreLookupService.find(tileEntityTag.get("id", StringTag.class));
-                if (store != null) {
-                    store.load(state, tileEntityTag);
-                } else {
-                    GlowServer.logger.severe("Unable to find store for BlockState " + state.getClass());
-                }
-            }
-        }
 
-        return true;
+        List<CompoundTag> tileEntities = levelTag.getList("TileEntities", CompoundTag.class);
+        return new AnvilPreparedChunk(sections, heightMap, populated, tileEntities);
     }
 
     /**
-     * Expand a half-length array into a full-length array.
+     * A chunk which has been read from an Anvil region.
      */
-    private byte[] expand(byte[] data) {
-        byte[] result = new byte[data.length * 2];
-        for (int i = 0; i < data.length; ++i) {
-            result[i * 2] = (byte) (data[i] & 0x0f);
-            result[i * 2 + 1] = (byte) ((data[i] & 0xf0) >> 4);
+    private static final class AnvilPreparedChunk implements PreparedChunk {
+        private final ChunkSection[] sections;
+        private final int[] heightMap;
+        private final boolean populated;
+        private final List<CompoundTag> tileEntities;
+
+        public AnvilPreparedChunk(ChunkSection[] sections, int[] heightMap, boolean populated, List<CompoundTag> tileEntities) {
+            this.sections = sections;
+            this.heightMap = heightMap;
+            this.populated = populated;
+            this.tileEntities = tileEntities;
         }
-        return result;
-    }
 
-    /**
-     * Shrink a full-length array into a half-length array.
-     */
-    private byte[] shrink(byte[] data) {
-        byte[] result = new byte[data.length / 2];
-        for (int i = 0; i < data.length; i += 2) {
-            result[i / 2] = (byte) ((data[i + 1] << 4) | data[i]);
+        @SuppressWarnings("unchecked")
+        public void install(GlowChunk chunk) {
+            // initialize the chunk
+            chunk.initializeSections(sections, heightMap);
+            chunk.setPopulated(populated);
+
+            // read tile entities
+            for (CompoundTag tileEntityTag : tileEntities) {
+                GlowBlockState state = chunk.getBlock(
+                        tileEntityTag.get("x", IntTag.class),
+                        tileEntityTag.get("y", IntTag.class),
+                        tileEntityTag.get("z", IntTag.class)).getState();
+                if (state.getClass() != GlowBlockState.class) {
+                    BlockStateStore store = BlockStateStoreLookupService.find(tileEntityTag.get("id", StringTag.class));
+                    if (store != null) {
+                        store.load(state, tileEntityTag);
+                    } else {
+                        GlowServer.logger.severe("Unable to find store for BlockState " + state.getClass());
+                    }
+                }
+            }
+
+            // the chunk matches what is stored
+            chunk.markSaved(chunk.getModCount());
         }
-        return result;
     }
 
     /**
@@ -132,60 +232,13 @@ public final class AnvilChunkIoService implements ChunkIoService {
      * @throws java.io.IOException
      */
     public void write(int x, int z, GlowChunk chunk) throws IOException {
-        RegionFile region = cache.getRegionFile(dir, x, z);
-        int regionX = x & (REGION_SIZE - 1);
-        int regionZ = z & (REGION_SIZE - 1);
-
-        List<Tag> levelTags = new LinkedList<Tag>();
-
-        // core properties
-        levelTags.add(new IntTag("xPos", chunk.getX()));
-        levelTags.add(new IntTag("zPos", chunk.getZ()));
-        levelTags.add(new ByteTag("TerrainPopulated", (byte) (chunk.isPopulated() ? 1 : 0)));
-        levelTags.add(new LongTag("LastUpdate", 0));
+        capture(chunk).write();
+    }
 
-        // chunk sections
-        List<CompoundTag> sectionTags = new ArrayList<CompoundTag>();
+    public PreparedSave capture(GlowChunk chunk) {
         GlowChunkSnapshot snapshot = chunk.getChunkSnapshot(true, true, false);
-        ChunkSection[] sections = snapshot.getRawSections();
-        for (byte i = 0; i < sections.length; ++i) {
-            ChunkSection sec = sections[i];
-            if (sec == null) continue;
-
-            List<Tag> sectionTag = new LinkedList<Tag>();
-            sectionTag.add(new ByteTag("Y", i));
-            sectionTag.add(new ByteArrayTag("Blocks", sec.types));
-            sectionTag.add(new ByteArrayTag("Data", shrink(sec.metaData)));
-            sectionTag.add(new ByteArrayTag("BlockLight", shrink(sec.blockLight)));
-            sectionTag.add(new ByteArrayTag("SkyLight", shrink(sec.skyLight)));
-
-            sectionTags.add(new CompoundTag("", sectionTag));
-        }
-        levelTags.add(new ListTag<CompoundTag>("Sections", TagType.COMPOUND, sectionTags));
-
-        // height map
-        levelTags.add(new IntArrayTag("HeightMap", snapshot.getRawHeightmap()));
-
-        // biomes
-        Biome[] biomesArray = snapshot.getRawBiomes();
-        byte[] biomes = new byte[biomesArray.length];
-        for (int i = 0; i < biomes.length; ++i) {
-            biomes[i] = 0; // todo: convert Biome to value
-        }
-        levelTags.add(new ByteArrayTag("Biomes", biomes));
-
-        // todo: entities
-        List<CompoundTag> entities = new ArrayList<CompoundTag>();
-        /* for (Entity entity : chunk.getEntities()) {
-            GlowEntity glowEntity = (GlowEntity) entity;
-            EntityStore store = EntityStoreLookupService.find(glowEntity.getClass());
-            if (store == null)
-                continue;
-            entities.add(new CompoundTag("", store.save(glowEntity)));
-        } */
-        levelTags.add(new ListTag<CompoundTag>("Entities", TagType.COMPOUND, entities));
-
-        // tile entities
+
+        // tile entities are mutable, so they are saved right away
         List<CompoundTag> tileEntities = new ArrayList<CompoundTag>();
         for (GlowBlockState state : chunk.getTileEntities()) {
             if (state.getClass() != GlowBlockState.class) {
@@ -197,18 +250,211 @@ public final class AnvilChunkIoService implements ChunkIoService {
                 }
             }
         }
-        levelTags.add(new ListTag<CompoundTag>("TileEntities", TagType.COMPOUND, tileEntities));
 
-        List<Tag> levelOut = Arrays.<Tag>asList(new CompoundTag("Level", levelTags));
+        return new AnvilPreparedSave(chunk.getX(), chunk.getZ(), chunk.isPopulated(), snapshot, tileEntities);
+    }
 
-        DataOutputStream out = region.getChunkDataOutputStream(regionX, regionZ);
-        NBTOutputStream nbt = new NBTOutputStream(out, false);
-        nbt.writeTag(new CompoundTag("", levelOut));
-        nbt.close();
+    /**
+     * A chunk captured for saving, which is serialized and compressed by
+     * whichever thread writes it. Writes to the same region are serialized
+     * by the region file itself.
+     */
+    private final class AnvilPreparedSave implements PreparedSave {
+        private final int x, z;
+        private final boolean populated;
+        private final GlowChunkSnapshot snapshot;
+        private final List<CompoundTag> tileEntities;
+
+        public AnvilPreparedSave(int x, int z, boolean populated, GlowChunkSnapshot snapshot, List<CompoundTag> tileEntities) {
+            this.x = x;
+            this.z = z;
+            this.populated = populated;
+            this.snapshot = snapshot;
+            this.tileEntities = tileEntities;
+        }
+
+        public void write() throws IOException {
+            List<Tag> levelTags = new LinkedList<Tag>();
+
+            // core properties
+            levelTags.add(new IntTag("xPos", x));
+            levelTags.add(new IntTag("zPos", z));
+            levelTags.add(new ByteTag("TerrainPopulated", (byte) (populated ? 1 : 0)));
+            levelTags.add(new LongTag("LastUpdate", 0));
+
+            // chunk sections
+            List<CompoundTag> sectionTags = new ArrayList<CompoundTag>();
+            ChunkSection[] sections = snapshot.getRawSections();
+            for (byte i = 0; i < sections.length; ++i) {
+                ChunkSection sec = sections[i];
+                if (sec == null) continue;
+
+                List<Tag> sectionTag = new LinkedList<Tag>();
+                sectionTag.add(new ByteTag("Y", i));
+                sectionTag.add(new ByteArrayTag("Blocks", sec.types.toByteArray()));
+                sectionTag.add(new ByteArrayTag("Data", sec.metaData.getRawData()));
+                sectionTag.add(new ByteArrayTag("BlockLight", sec.blockLight.getRawData()));
+                sectionTag.add(new ByteArrayTag("SkyLight", sec.skyLight.getRawData()));
+
+                sectionTags.add(new CompoundTag("", sectionTag));
+            }
+            levelTags.add(new ListTag<CompoundTag>("Sections", TagType.COMPOUND, sectionTags));
+
+            // height map
+            levelTags.add(new IntArrayTag("HeightMap", snapshot.getRawHeightmap()));
+
+            // biomes
+            Biome[] biomesArray = snapshot.getRawBiomes();
+            byte[] biomes = new byte[biomesArray.length];
+            for (int i = 0; i < biomes.length; ++i) {
+                biomes[i] = 0; // todo: convert Biome to value
+            }
+            levelTags.add(new ByteArrayTag("Biomes", biomes));
+
+            // todo: entities
+            List<CompoundTag> entities = new ArrayList<CompoundTag>();
+            /* for (Entity entity : chunk.getEntities()) {
+                GlowEntity glowEntity = (GlowEntity) entity;
+                EntityStore store = EntityStoreLookupService.find(glowEntity.getClass());
+                if (store == null)
+                    continue;
+                entities.add(new CompoundTag("", store.save(glowEntity)));
+            } */
+            levelTags.add(new ListTag<CompoundTag>("Entities", TagType.COMPOUND, entities));
+
+            // tile entities
+            levelTags.add(new ListTag<CompoundTag>("TileEntities", TagType.COMPOUND, tileEntities));
+
+            List<Tag> levelOut = Arrays.<Tag>asList(new CompoundTag("Level", levelTags));
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+            NBTOutputStream nbt = new NBTOutputStream(new DeflaterOutputStream(bytes), false);
+            nbt.writeTag(new CompoundTag("", levelOut));
+            nbt.close();
+            store(x, z, bytes.toByteArray());
+        }
+    }
+
+    /**
+     * Store a chunk's compressed data. If saves are journaled, the data is
+     * only appended to the journal and written to its region at the next
+     * checkpoint, so a save costs one sequential write.
+     */
+    private void store(int x, int z, byte[] data) throws IOException {
+        ChunkJournal journal, failed = null;
+        checkpointLock.readLock().lock();
+        try {
+            journal = this.journal;
+            if (journal != null) {
+                try {
+                    journal.append(x, z, data, data.length);
+                    deferred.put(GlowChunk.Key.toLong(x, z), data);
+                } catch (IOException e) {
+                    GlowServer.logger.log(Level.SEVERE, "Chunk journal of " + dir.getName() + " failed, saving without it", e);
+                    failed = journal;
+                }
+            }
+            if (journal == null || failed != null) {
+                writeRegion(x, z, data, data.length);
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+
+        if (failed != null) {
+            abandon(failed);
+        } else if (journal != null && journal.size() >= CHECKPOINT_BYTES) {
+            checkpoint();
+        }
+    }
+
+    private File journalFile() {
+        return new File(dir, "chunks.journal");
+    }
+
+    private File corruptJournalFile() {
+        return new File(dir, "chunks.journal.corrupt");
+    }
+
+    /**
+     * Stop using a journal which has failed, removing it once the chunks
+     * it held are in the regions and on disk so its records are not
+     * replayed over later saves.
+     */
+    private void abandon(ChunkJournal failed) throws IOException {
+        checkpointLock.writeLock().lock();
+        try {
+            if (journal != failed) {
+                return;
+            }
+            journal = null;
+            failed.close();
+            writeDeferred();
+            cache.force();
+            if (!journalFile().delete()) {
+                GlowServer.logger.warning("Could not delete the failed chunk journal of " + dir.getName());
+            }
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    private void writeRegion(int x, int z, byte[] data, int length) throws IOException {
+        RegionFile region = cache.acquire(dir, x, z);
+        try {
+            region.write(x & (REGION_SIZE - 1), z & (REGION_SIZE - 1), data, length);
+        } finally {
+            cache.release(region);
+        }
+    }
+
+    /**
+     * Write the deferred chunks to their regions. Called holding the
+     * checkpoint lock exclusively.
+     */
+    private void writeDeferred() throws IOException {
+        for (Map.Entry<Long, byte[]> entry : deferred.entrySet()) {
+            long key = entry.getKey();
+            byte[] data = entry.getValue();
+            writeRegion((int) (key >> 32), (int) key, data, data.length);
+        }
+        deferred.clear();
+    }
+
+    /**
+     * Write the deferred chunks to their regions, force the regions to disk
+     * and empty the journal, once no saves are in progress.
+     */
+    private void checkpoint() throws IOException {
+        checkpointLock.writeLock().lock();
+        try {
+            ChunkJournal journal = this.journal;
+            if (journal == null || journal.size() == 0) {
+                return;
+            }
+            writeDeferred();
+            cache.force();
+            journal.truncate();
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    public long compact() throws IOException {
+        return cache.compact(dir);
     }
 
     public void unload() throws IOException {
-        cache.clear();
+        try {
+            checkpoint();
+        } finally {
+            ChunkJournal journal = this.journal;
+            this.journal = null;
+            if (journal != null) {
+                journal.close();
+            }
+            cache.clear();
+        }
     }
 
 }
@@ -0,0 +1,219 @@
+package net.glowstone.io.anvil;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of compressed chunk data. Saved chunks only go
+ * into their region files at the next checkpoint, so until then the
+ * journal is their copy on disk, and it is replayed into the regions when
+ * the world is next loaded after a crash.
+ * <p>
+ * Each record is the payload length, the chunk coordinates and a CRC32,
+ * followed by the payload. Appends from different threads are committed in
+ * groups: whichever thread finds no flush in progress writes every record
+ * queued so far with one gathering write and one force, while the others
+ * wait for it. Once the journaled chunks have been written to the region
+ * files and forced to disk the journal is truncated, which is the
+ * checkpoint.
+ */
+final class ChunkJournal {
+
+    /**
+     * The size of each record header in bytes.
+     */
+    private static final int RECORD_HEADER = 16;
+
+    /**
+     * The largest payload a record may hold, matching the region format.
+     */
+    private static final int MAX_PAYLOAD = 256 * 4096;
+
+    private final FileChannel channel;
+
+    private List<ByteBuffer> pending = new ArrayList<ByteBuffer>();
+    private long appended = 0;
+    private long durable = 0;
+    private boolean flushing = false;
+    private IOException failure;
+
+    /**
+     * Open a journal for appending, discarding anything already in it.
+     * @param file The journal file.
+     * @throws IOException if the journal could not be opened.
+     */
+    public ChunkJournal(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.truncate(0);
+    }
+
+    /**
+     * A handler for the records found when replaying a journal.
+     */
+    public interface Replay {
+        public void chunk(int x, int z, byte[] data) throws IOException;
+    }
+
+    /**
+     * Read every intact record from a journal in the order they were
+     * written, stopping at the first torn or corrupt record.
+     * @param file The journal file.
+     * @param replay The handler to give the records to.
+     * @return The number of records replayed.
+     * @throws IOException if the journal could not be read or a record could not be handled.
+     */
+    public static int replay(File file, Replay replay) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        int count = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                int length, x, z, crc;
+                try {
+                    length = in.readInt();
+                    x = in.readInt();
+                    z = in.readInt();
+                    crc = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > MAX_PAYLOAD) {
+                    break;
+                }
+                byte[] data = new byte[length];
+                try {
+                    in.readFully(data);
+                } catch (EOFException e) {
+                    break;
+                }
+                if (checksum(x, z, data, length) != crc) {
+                    break;
+                }
+                replay.chunk(x, z, data);
+                ++count;
+            }
+        } finally {
+            in.close();
+        }
+        return count;
+    }
+
+    /**
+     * Append a chunk's compressed data to the journal, returning once it
+     * has been forced to disk.
+     * @param x The chunk's X coordinate.
+     * @param z The chunk's Z coordinate.
+     * @param data The compressed chunk data.
+     * @param length The length of the data.
+     * @throws IOException if the journal could not be written.
+     */
+    public void append(int x, int z, byte[] data, int length) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + length);
+        record.putInt(length);
+        record.putInt(x);
+        record.putInt(z);
+        record.putInt(checksum(x, z, data, length));
+        record.put(data, 0, length);
+        record.flip();
+
+        long end;
+        synchronized (this) {
+            if (failure != null) {
+                throw new IOException("Chunk journal has failed", failure);
+            }
+            pending.add(record);
+            appended += record.remaining();
+            end = appended;
+        }
+
+        while (true) {
+            List<ByteBuffer> batch;
+            long batchEnd, position;
+            synchronized (this) {
+                while (flushing && durable < end) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for chunk journal");
+                    }
+                }
+                if (failure != null) {
+                    throw new IOException("Chunk journal has failed", failure);
+                }
+                if (durable >= end) {
+                    return;
+                }
+                // lead a commit of everything queued so far
+                flushing = true;
+                batch = pending;
+                pending = new ArrayList<ByteBuffer>();
+                batchEnd = appended;
+                position = durable;
+            }
+
+            IOException error = null;
+            try {
+                ByteBuffer[] buffers = batch.toArray(new ByteBuffer[batch.size()]);
+                channel.position(position);
+                while (buffers[buffers.length - 1].hasRemaining()) {
+                    channel.write(buffers);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+
+            synchronized (this) {
+                flushing = false;
+                if (error == null) {
+                    durable = batchEnd;
+                } else {
+                    failure = error;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Get how many bytes have been appended since the last checkpoint.
+     * @return The journal size in bytes.
+     */
+    public synchronized long size() {
+        return appended;
+    }
+
+    /**
+     * Empty the journal once everything in it has reached the region files.
+     * No appends may be in progress.
+     * @throws IOException if the journal could not be truncated.
+     */
+    public synchronized void truncate() throws IOException {
+        if (flushing || !pending.isEmpty()) {
+            throw new IllegalStateException("Cannot truncate the chunk journal during an append");
+        }
+        channel.truncate(0);
+        channel.force(true);
+        appended = durable = 0;
+    }
+
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private static int checksum(int x, int z, byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putInt(x).putInt(z).array());
+        crc.update(data, 0, length);
+        return (int) crc.getValue();
+    }
+
+}
@@ -59,9 +59,27 @@ package net.glowstone.io.anvil;
  */
 
 import java.io.*;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.zip.*;
 
+/**
+ * A region file accessed through a {@link FileChannel}. Chunks are read with
+ * positional reads under a shared lock, so different threads can read from
+ * the same region at once, while writes take the lock exclusively. In
+ * memory-mapped mode the header is mapped and updated in place, and chunks
+ * are copied straight out of a mapped view of the file rather than read
+ * with a system call each.
+ */
 public class RegionFile {
 
     private static final int VERSION_GZIP = 1;
@@ -71,18 +89,33 @@ public class RegionFile {
     private static final int SECTOR_INTS = SECTOR_BYTES / 4;
 
     static final int CHUNK_HEADER_SIZE = 5;
-    private static final byte emptySector[] = new byte[4096];
 
-    private RandomAccessFile file;
+    /**
+     * Whether newly opened region files should be memory-mapped.
+     */
+    private static volatile boolean memoryMapped = false;
+
+    private final File path;
+    private FileChannel channel;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object mapLock = new Object();
+    private final boolean mapped;
+    private MappedByteBuffer header;
+    private volatile MappedByteBuffer view;
     private final int offsets[];
     private final int chunkTimestamps[];
-    private ArrayList<Boolean> sectorFree;
+    private final BitSet sectorFree = new BitSet();
+    private int sectorCount;
     private int sizeDelta;
     private long lastModified = 0;
+    private int users = 0;
+    private boolean retired = false;
 
     public RegionFile(File path) throws IOException {
+        this.path = path;
         offsets = new int[SECTOR_INTS];
         chunkTimestamps = new int[SECTOR_INTS];
+        mapped = memoryMapped;
 
         sizeDelta = 0;
 
@@ -90,55 +123,70 @@ public class RegionFile {
             lastModified = path.lastModified();
         }
 
-        file = new RandomAccessFile(path, "rw");
+        open();
+    }
 
-        if (file.length() < SECTOR_BYTES) {
-            /* we need to write the chunk offset table */
-            for (int i = 0; i < SECTOR_INTS; ++i) {
-                file.writeInt(0);
-            }
-            // write another sector for the timestamp info
-            for (int i = 0; i < SECTOR_INTS; ++i) {
-                file.writeInt(0);
-            }
+    /* opens the file and reads the header */
+    private void open() throws IOException {
+        channel = FileChannel.open(path.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
 
+        long length = channel.size();
+        long start = length;
+        if (length < SECTOR_BYTES) {
+            /* we need to write the chunk offset table and the timestamp info */
+            start = 0;
             sizeDelta += SECTOR_BYTES * 2;
         }
-
-        if ((file.length() & 0xfff) != 0) {
-            /* the file size is not a multiple of 4KB, grow it */
-            for (int i = 0; i < (file.length() & 0xfff); ++i) {
-                file.write((byte) 0);
-            }
+        /* the file size must be a multiple of 4KB with room for the header */
+        long end = Math.max(SECTOR_BYTES * 2, (length + SECTOR_BYTES - 1) & ~(long) (SECTOR_BYTES - 1));
+        if (start < end) {
+            writeFully(ByteBuffer.allocate((int) (end - start)), start);
         }
 
-        /* set up the available sector map */
-        int nSectors = (int) file.length() / SECTOR_BYTES;
-        sectorFree = new ArrayList<Boolean>(nSectors);
+        /* set up the available sector map, where set bits are free */
+        sectorCount = (int) (end / SECTOR_BYTES);
+        sectorFree.clear();
+        sectorFree.set(2, sectorCount); // after the offset table and last modified info
 
-        for (int i = 0; i < nSectors; ++i) {
-            sectorFree.add(true);
+        ByteBuffer table;
+        if (mapped) {
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, SECTOR_BYTES * 2);
+            table = header.duplicate();
+        } else {
+            table = ByteBuffer.allocate(SECTOR_BYTES * 2);
+            readFully(table, 0);
+            table.flip();
         }
 
-        sectorFree.set(0, false); // chunk offset table
-        sectorFree.set(1, false); // for the last modified info
-
-        file.seek(0);
         for (int i = 0; i < SECTOR_INTS; ++i) {
-            int offset = file.readInt();
+            int offset = table.getInt();
             offsets[i] = offset;
-            if (offset != 0 && (offset >> 8) + (offset & 0xFF) <= sectorFree.size()) {
-                for (int sectorNum = 0; sectorNum < (offset & 0xFF); ++sectorNum) {
-                    sectorFree.set((offset >> 8) + sectorNum, false);
-                }
+            if (offset != 0 && (offset >> 8) + (offset & 0xFF) <= sectorCount) {
+                sectorFree.clear(offset >> 8, (offset >> 8) + (offset & 0xFF));
             }
         }
         for (int i = 0; i < SECTOR_INTS; ++i) {
-            int lastModValue = file.readInt();
+            int lastModValue = table.getInt();
             chunkTimestamps[i] = lastModValue;
         }
     }
 
+    /**
+     * Set whether region files opened from now on should be memory-mapped.
+     * @param memoryMapped Whether to memory-map region files.
+     */
+    public static void setMemoryMapped(boolean memoryMapped) {
+        RegionFile.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Check whether region files are currently opened memory-mapped.
+     * @return Whether region files are memory-mapped.
+     */
+    public static boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
     /* the modification date of the region file when it was first opened */
     public long lastModified() {
         return lastModified;
@@ -146,9 +194,14 @@ public class RegionFile {
 
     /* gets how much the region file has grown since it was last checked */
     public int getSizeDelta() {
-        int ret = sizeDelta;
-        sizeDelta = 0;
-        return ret;
+        lock.writeLock().lock();
+        try {
+            int ret = sizeDelta;
+            sizeDelta = 0;
+            return ret;
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     /*
@@ -160,37 +213,46 @@ public class RegionFile {
             throw new IndexOutOfBoundsException();
         }
 
-        int offset = getOffset(x, z);
-        if (offset == 0) {
-            // does not exist
-            return null;
-        }
+        byte[] sectors;
+        lock.readLock().lock();
+        try {
+            int offset = getOffset(x, z);
+            if (offset == 0) {
+                // does not exist
+                return null;
+            }
 
-        int sectorNumber = offset >> 8;
-        int numSectors = offset & 0xFF;
+            int sectorNumber = offset >> 8;
+            int numSectors = offset & 0xFF;
 
-        if (sectorNumber + numSectors > sectorFree.size()) {
-            throw new IOException("Invalid sector");
-        }
+            if (sectorNumber + numSectors > sectorCount) {
+                throw new IOException("Invalid sector");
+            }
 
-        file.seek(sectorNumber * SECTOR_BYTES);
-        int length = file.readInt();
+            // read the whole run at once, so the header costs no extra call
+            long position = (long) sectorNumber * SECTOR_BYTES;
+            sectors = new byte[numSectors * SECTOR_BYTES];
+            if (mapped) {
+                ByteBuffer source = getView(position + sectors.length).duplicate();
+                source.position((int) position);
+                source.get(sectors);
+            } else {
+                readFully(ByteBuffer.wrap(sectors), position);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
 
-        if (length > SECTOR_BYTES * numSectors) {
+        int length = ((sectors[0] & 0xFF) << 24) | ((sectors[1] & 0xFF) << 16) | ((sectors[2] & 0xFF) << 8) | (sectors[3] & 0xFF);
+        if (length <= 0 || length + 4 > sectors.length) {
             throw new IOException("Invalid length");
         }
 
-        byte version = file.readByte();
+        byte version = sectors[4];
         if (version == VERSION_GZIP) {
-            byte[] data = new byte[length - 1];
-            file.read(data);
-            DataInputStream ret = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(data)));
-            return ret;
+            return new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(sectors, CHUNK_HEADER_SIZE, length - 1)));
         } else if (version == VERSION_DEFLATE) {
-            byte[] data = new byte[length - 1];
-            file.read(data);
-            DataInputStream ret = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)));
-            return ret;
+            return new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(sectors, CHUNK_HEADER_SIZE, length - 1)));
         }
 
         throw new IOException("Unknown version");
@@ -227,6 +289,15 @@ public class RegionFile {
 
     /* write a chunk at (x,z) with length bytes of data to disk */
     protected void write(int x, int z, byte[] data, int length) throws IOException {
+        lock.writeLock().lock();
+        try {
+            writeChunk(x, z, data, length);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void writeChunk(int x, int z, byte[] data, int length) throws IOException {
         int offset = getOffset(x, z);
         int sectorNumber = offset >> 8;
         int sectorsAllocated = offset & 0xFF;
@@ -237,69 +308,71 @@ public class RegionFile {
             return;
         }
 
-        if (sectorNumber != 0 && sectorsAllocated == sectorsNeeded) {
+        boolean allocated = sectorNumber >= 2 && sectorNumber + sectorsAllocated <= sectorCount;
+
+        if (allocated && sectorsAllocated == sectorsNeeded) {
             /* we can simply overwrite the old sectors */
             write(sectorNumber, data, length);
         } else {
-            /* we need to allocate new sectors */
-
             /* mark the sectors previously used for this chunk as free */
-            for (int i = 0; i < sectorsAllocated; ++i) {
-                sectorFree.set(sectorNumber + i, true);
-            }
-
-            /* scan for a free space large enough to store this chunk */
-            int runStart = sectorFree.indexOf(true);
-            int runLength = 0;
-            if (runStart != -1) {
-                for (int i = runStart; i < sectorFree.size(); ++i) {
-                    if (runLength != 0) {
-                        if (sectorFree.get(i)) runLength++;
-                        else runLength = 0;
-                    } else if (sectorFree.get(i)) {
-                        runStart = i;
-                        runLength = 1;
-                    }
-                    if (runLength >= sectorsNeeded) {
-                        break;
-                    }
-                }
+            if (allocated) {
+                sectorFree.set(sectorNumber, sectorNumber + sectorsAllocated);
             }
 
-            if (runLength >= sectorsNeeded) {
-                /* we found a free space large enough */
-                sectorNumber = runStart;
-                setOffset(x, z, (sectorNumber << 8) | sectorsNeeded);
-                for (int i = 0; i < sectorsNeeded; ++i) {
-                    sectorFree.set(sectorNumber + i, false);
-                }
-                write(sectorNumber, data, length);
-            } else {
+            sectorNumber = allocate(sectorsNeeded);
+            if (sectorNumber + sectorsNeeded > sectorCount) {
                 /*
-                 * no free space large enough found -- we need to grow the
-                 * file
+                 * no free space large enough found -- grow the file by
+                 * writing the chunk past the end and extending it to a whole
+                 * number of sectors
                  */
-                file.seek(file.length());
-                sectorNumber = sectorFree.size();
-                for (int i = 0; i < sectorsNeeded; ++i) {
-                    file.write(emptySector);
-                    sectorFree.add(false);
+                int newCount = sectorNumber + sectorsNeeded;
+                sizeDelta += SECTOR_BYTES * (newCount - sectorCount);
+                sectorCount = newCount;
+                write(sectorNumber, data, length);
+                long end = (long) newCount * SECTOR_BYTES;
+                if (channel.size() < end) {
+                    writeFully(ByteBuffer.allocate(1), end - 1);
                 }
-                sizeDelta += SECTOR_BYTES * sectorsNeeded;
-
+            } else {
                 write(sectorNumber, data, length);
-                setOffset(x, z, (sectorNumber << 8) | sectorsNeeded);
             }
+            setOffset(x, z, (sectorNumber << 8) | sectorsNeeded);
         }
         setTimestamp(x, z, (int) (System.currentTimeMillis() / 1000L));
     }
 
+    /*
+     * finds the first run of free sectors large enough and marks it used,
+     * extending past the end of the file if there is none
+     */
+    private int allocate(int sectorsNeeded) {
+        int runStart = sectorFree.nextSetBit(0);
+        while (runStart >= 0 && runStart < sectorCount) {
+            int runEnd = Math.min(sectorFree.nextClearBit(runStart), sectorCount);
+            if (runEnd - runStart >= sectorsNeeded) {
+                sectorFree.clear(runStart, runStart + sectorsNeeded);
+                return runStart;
+            }
+            if (runEnd == sectorCount) {
+                // a free run at the end of the file can be extended
+                sectorFree.clear(runStart, sectorCount);
+                return runStart;
+            }
+            runStart = sectorFree.nextSetBit(runEnd);
+        }
+        return sectorCount;
+    }
+
     /* write a chunk data to the region file at specified sector number */
     private void write(int sectorNumber, byte[] data, int length) throws IOException {
-        file.seek(sectorNumber * SECTOR_BYTES);
-        file.writeInt(length + 1); // chunk length
-        file.writeByte(VERSION_DEFLATE); // chunk version number
-        file.write(data, 0, length); // chunk data
+        long position = (long) sectorNumber * SECTOR_BYTES;
+        ByteBuffer prefix = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+        prefix.putInt(length + 1); // chunk length
+        prefix.put((byte) VERSION_DEFLATE); // chunk version number
+        prefix.flip();
+        writeFully(prefix, position);
+        writeFully(ByteBuffer.wrap(data, 0, length), position + CHUNK_HEADER_SIZE); // chunk data
     }
 
     /* is this an invalid chunk coordinate? */
@@ -312,22 +385,240 @@ public class RegionFile {
     }
 
     public boolean hasChunk(int x, int z) {
-        return getOffset(x, z) != 0;
+        lock.readLock().lock();
+        try {
+            return getOffset(x, z) != 0;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     private void setOffset(int x, int z, int offset) throws IOException {
         offsets[x + z * 32] = offset;
-        file.seek((x + z * 32) * 4);
-        file.writeInt(offset);
+        writeHeaderInt((x + z * 32) * 4, offset);
     }
 
     private void setTimestamp(int x, int z, int value) throws IOException {
         chunkTimestamps[x + z * 32] = value;
-        file.seek(SECTOR_BYTES + (x + z * 32) * 4);
-        file.writeInt(value);
+        writeHeaderInt(SECTOR_BYTES + (x + z * 32) * 4, value);
+    }
+
+    private void writeHeaderInt(int position, int value) throws IOException {
+        if (header != null) {
+            header.putInt(position, value);
+        } else {
+            ByteBuffer buf = ByteBuffer.allocate(4);
+            buf.putInt(value);
+            buf.flip();
+            writeFully(buf, position);
+        }
+    }
+
+    /* gets a mapped view of the file covering at least the given length */
+    private MappedByteBuffer getView(long length) throws IOException {
+        MappedByteBuffer current = view;
+        if (current != null && current.capacity() >= length) {
+            return current;
+        }
+        synchronized (mapLock) {
+            current = view;
+            if (current == null || current.capacity() < length) {
+                // the file only grows under the write lock, so this covers it
+                current = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                view = current;
+            }
+            return current;
+        }
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        readFully(channel, buf, position);
+    }
+
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        writeFully(channel, buf, position);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    /**
+     * Rewrite this region with its chunks packed one after another in chunk
+     * order, each taking only the sectors its data needs. The copy is
+     * written to a temporary file and checked against the original before
+     * it replaces it. Reads and writes of this region wait until it is done.
+     * @return The number of bytes reclaimed.
+     * @throws IOException if the region could not be compacted, in which
+     *     case the original file is left in place.
+     */
+    public long compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            long oldSize = channel.size();
+            File temp = new File(path.getPath() + ".compact");
+            int[] newOffsets = new int[SECTOR_INTS];
+            long newSize;
+
+            FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                int next = 2;
+                for (int i = 0; i < SECTOR_INTS; ++i) {
+                    byte[] sectors = readChunkSectors(offsets[i]);
+                    if (sectors == null) {
+                        continue;
+                    }
+                    int used = usedSectors(sectors);
+                    writeFully(out, ByteBuffer.wrap(sectors, 0, used * SECTOR_BYTES), (long) next * SECTOR_BYTES);
+                    newOffsets[i] = (next << 8) | used;
+                    next += used;
+                }
+
+                ByteBuffer table = ByteBuffer.allocate(SECTOR_BYTES * 2);
+                for (int i = 0; i < SECTOR_INTS; ++i) {
+                    table.putInt(newOffsets[i]);
+                }
+                for (int i = 0; i < SECTOR_INTS; ++i) {
+                    table.putInt(newOffsets[i] == 0 ? 0 : chunkTimestamps[i]);
+                }
+                table.flip();
+                writeFully(out, table, 0);
+                out.force(true);
+                newSize = (long) next * SECTOR_BYTES;
+
+                // check the copy against the original before using it
+                if (out.size() != newSize) {
+                    throw new IOException("Compacted region has the wrong size");
+                }
+                ByteBuffer check = ByteBuffer.allocate(SECTOR_BYTES * 2);
+                readFully(out, check, 0);
+                table.rewind();
+                check.flip();
+                if (!check.equals(table)) {
+                    throw new IOException("Compacted region header does not match");
+                }
+                for (int i = 0; i < SECTOR_INTS; ++i) {
+                    if (newOffsets[i] == 0) {
+                        continue;
+                    }
+                    byte[] original = readChunkSectors(offsets[i]);
+                    byte[] copy = new byte[(newOffsets[i] & 0xFF) * SECTOR_BYTES];
+                    readFully(out, ByteBuffer.wrap(copy), (long) (newOffsets[i] >> 8) * SECTOR_BYTES);
+                    if (!Arrays.equals(Arrays.copyOf(original, copy.length), copy)) {
+                        throw new IOException("Compacted chunk " + i + " does not match");
+                    }
+                }
+            } catch (IOException e) {
+                out.close();
+                temp.delete();
+                throw e;
+            }
+            out.close();
+
+            // swap the copy in, and reopen whichever file ended up in place
+            closeChannel();
+            try {
+                try {
+                    Files.move(temp.toPath(), path.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                temp.delete();
+                open();
+            }
+
+            sizeDelta += (int) (newSize - oldSize);
+            return oldSize - newSize;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /* reads all the sectors allocated to a chunk, or null if there are none */
+    private byte[] readChunkSectors(int offset) throws IOException {
+        int sectorNumber = offset >> 8;
+        int numSectors = offset & 0xFF;
+        if (offset == 0 || sectorNumber < 2 || sectorNumber + numSectors > sectorCount) {
+            return null;
+        }
+        byte[] sectors = new byte[numSectors * SECTOR_BYTES];
+        readFully(ByteBuffer.wrap(sectors), (long) sectorNumber * SECTOR_BYTES);
+        return sectors;
+    }
+
+    /* gets how many of a chunk's sectors its data needs */
+    private static int usedSectors(byte[] sectors) {
+        int length = ((sectors[0] & 0xFF) << 24) | ((sectors[1] & 0xFF) << 16) | ((sectors[2] & 0xFF) << 8) | (sectors[3] & 0xFF);
+        if (length <= 0 || length + 4 > sectors.length) {
+            // keep whatever is there as it is
+            return sectors.length / SECTOR_BYTES;
+        }
+        return (length + 4 + SECTOR_BYTES - 1) / SECTOR_BYTES;
+    }
+
+    /* marks the region as in use by one more caller */
+    synchronized void retain() {
+        users++;
+    }
+
+    /* marks the region as no longer used by a caller, closing it if retired */
+    synchronized void release() throws IOException {
+        if (--users == 0 && retired) {
+            close();
+        }
+    }
+
+    /* closes the region once it is no longer in use */
+    synchronized void retire() throws IOException {
+        retired = true;
+        if (users == 0) {
+            close();
+        }
+    }
+
+    /* forces every write to this region out to the disk */
+    public void force() throws IOException {
+        lock.readLock().lock();
+        try {
+            if (header != null) {
+                header.force();
+            }
+            channel.force(true);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     public void close() throws IOException {
-        file.close();
+        lock.writeLock().lock();
+        try {
+            // anything journalled may only be dropped once it is on disk
+            channel.force(true);
+            closeChannel();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void closeChannel() throws IOException {
+        if (header != null) {
+            header.force();
+            header = null;
+        }
+        view = null;
+        channel.close();
     }
 }
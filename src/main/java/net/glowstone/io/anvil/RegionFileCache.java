@@ -27,71 +27,224 @@ package net.glowstone.io.anvil;
  * Some changes have been made as part of the Glowstone project.
  */
 
+import net.glowstone.GlowServer;
+
 import java.io.*;
-import java.lang.ref.*;
 import java.util.*;
+import java.util.logging.Level;
 
 /**
  * A simple cache and wrapper for efficiently accessing multiple RegionFiles simultaneously.
+ * Open regions are kept in least-recently-used order, and once more than the
+ * limit are open the least recently used one is closed. Regions are handed
+ * out with {@link #acquire} and must be given back with {@link #release}, so
+ * a region evicted while in use is only closed once it is released.
  */
 public class RegionFileCache {
 
-    private static final int MAX_CACHE_SIZE = 256;
+    /**
+     * The default number of region files each cache may keep open.
+     */
+    private static volatile int defaultLimit = 256;
 
-    private final Map<File, Reference<RegionFile>> cache = new HashMap<File, Reference<RegionFile>>();
+    private final LinkedHashMap<File, RegionFile> cache = new LinkedHashMap<File, RegionFile>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, RegionFile> eldest) {
+            if (size() <= limit) {
+                return false;
+            }
+            evictions++;
+            retire(eldest.getValue());
+            return true;
+        }
+    };
 
     private final String extension;
 
+    private int limit;
+    private long hits, misses, evictions;
+
     public RegionFileCache(String extension) {
         this.extension = extension;
+        limit = defaultLimit;
+    }
+
+    /**
+     * Force every open region file out to the disk.
+     * @throws IOException if a region could not be forced.
+     */
+    public void force() throws IOException {
+        List<RegionFile> regions;
+        synchronized (this) {
+            regions = new ArrayList<RegionFile>(cache.values());
+            for (RegionFile region : regions) {
+                region.retain();
+            }
+        }
+        try {
+            for (RegionFile region : regions) {
+                region.force();
+            }
+        } finally {
+            for (RegionFile region : regions) {
+                release(region);
+            }
+        }
     }
 
-    public RegionFile getRegionFile(File basePath, int chunkX, int chunkZ) throws IOException {
+    /**
+     * Set how many region files new caches may keep open.
+     * @param limit The number of open region files.
+     */
+    public static void setDefaultLimit(int limit) {
+        defaultLimit = Math.max(1, limit);
+    }
+
+    /**
+     * Get a region file, opening it if needed, and mark it as in use. It
+     * must be passed to {@link #release} once the caller is done with it.
+     * @param basePath The world directory.
+     * @param chunkX The X coordinate of a chunk in the region.
+     * @param chunkZ The Z coordinate of a chunk in the region.
+     * @return The region file.
+     * @throws IOException if the region file could not be opened.
+     */
+    public synchronized RegionFile acquire(File basePath, int chunkX, int chunkZ) throws IOException {
         File regionDir = new File(basePath, "region");
         File file = new File(regionDir, "r." + (chunkX >> 5) + "." + (chunkZ >> 5) + extension);
 
-        Reference<RegionFile> ref = cache.get(file);
+        RegionFile reg = cache.get(file);
+        if (reg != null) {
+            hits++;
+        } else {
+            misses++;
+            if (!regionDir.exists()) {
+                regionDir.mkdirs();
+            }
+            reg = new RegionFile(file);
+            cache.put(file, reg);
+        }
+        reg.retain();
+        return reg;
+    }
 
-        if (ref != null && ref.get() != null) {
-            return ref.get();
+    /**
+     * Give back a region file obtained from {@link #acquire}.
+     * @param region The region file.
+     */
+    public void release(RegionFile region) {
+        try {
+            region.release();
+        } catch (IOException e) {
+            GlowServer.logger.log(Level.WARNING, "Error while closing region file", e);
         }
+    }
 
-        if (!regionDir.exists()) {
-            regionDir.mkdirs();
+    private void retire(RegionFile region) {
+        try {
+            region.retire();
+        } catch (IOException e) {
+            GlowServer.logger.log(Level.WARNING, "Error while closing region file", e);
         }
+    }
 
-        if (cache.size() >= MAX_CACHE_SIZE) {
-            clear();
+    /**
+     * Close every region file, or mark it to be closed when released if it
+     * is in use.
+     */
+    public synchronized void clear() {
+        for (RegionFile region : cache.values()) {
+            retire(region);
         }
+        cache.clear();
+    }
 
-        RegionFile reg = new RegionFile(file);
-        cache.put(file, new SoftReference<RegionFile>(reg));
-        return reg;
+    /**
+     * Set how many region files this cache may keep open, closing the least
+     * recently used ones if there are more already.
+     * @param limit The number of open region files.
+     */
+    public synchronized void setLimit(int limit) {
+        this.limit = Math.max(1, limit);
+        Iterator<RegionFile> it = cache.values().iterator();
+        while (cache.size() > this.limit && it.hasNext()) {
+            RegionFile region = it.next();
+            it.remove();
+            evictions++;
+            retire(region);
+        }
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized int getOpenCount() {
+        return cache.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
     }
 
-    public void clear() throws IOException {
-        for (Reference<RegionFile> ref : cache.values()) {
-            RegionFile value = ref.get();
-            if (value != null) {
-                value.close();
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Compact every region file of a world, one at a time.
+     * @param basePath The world directory.
+     * @return The total number of bytes reclaimed.
+     * @throws IOException if a region could not be compacted.
+     */
+    public long compact(File basePath) throws IOException {
+        File[] files = new File(basePath, "region").listFiles();
+        if (files == null) {
+            return 0;
+        }
+        long reclaimed = 0;
+        for (File file : files) {
+            String[] parts = file.getName().split("\\.");
+            if (parts.length != 4 || !parts[0].equals("r") || !file.getName().endsWith(extension)) {
+                continue;
+            }
+            int regionX, regionZ;
+            try {
+                regionX = Integer.parseInt(parts[1]);
+                regionZ = Integer.parseInt(parts[2]);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            RegionFile region = acquire(basePath, regionX << 5, regionZ << 5);
+            try {
+                reclaimed += region.compact();
+            } finally {
+                release(region);
             }
         }
-        cache.clear();
+        return reclaimed;
     }
 
     public int getSizeDelta(File basePath, int chunkX, int chunkZ) throws IOException {
-        RegionFile r = getRegionFile(basePath, chunkX, chunkZ);
-        return r.getSizeDelta();
+        RegionFile r = acquire(basePath, chunkX, chunkZ);
+        try {
+            return r.getSizeDelta();
+        } finally {
+            release(r);
+        }
     }
 
     public DataInputStream getChunkDataInputStream(File basePath, int chunkX, int chunkZ) throws IOException {
-        RegionFile r = getRegionFile(basePath, chunkX, chunkZ);
-        return r.getChunkDataInputStream(chunkX & 31, chunkZ & 31);
-    }
-
-    public DataOutputStream getChunkDataOutputStream(File basePath, int chunkX, int chunkZ) throws IOException {
-        RegionFile r = getRegionFile(basePath, chunkX, chunkZ);
-        return r.getChunkDataOutputStream(chunkX & 31, chunkZ & 31);
+        RegionFile r = acquire(basePath, chunkX, chunkZ);
+        try {
+            return r.getChunkDataInputStream(chunkX & 31, chunkZ & 31);
+        } finally {
+            release(r);
+        }
     }
 
 }
@@ -0,0 +1,307 @@
+package net.glowstone.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An array of nibbles (4-bit values) stored efficiently as a byte array of
+ * half the size. The even-indexed nibbles are stored in the lower half of each
+ * byte, which is the same layout used by the Anvil format and the network
+ * protocol, so the raw data can be passed through to either without repacking.
+ * <p>
+ * While every nibble holds the same value, no byte array is allocated at all.
+ * A direct NibbleArray keeps its data in a direct {@link ByteBuffer} outside
+ * the Java heap instead of a byte array.
+ */
+public final class NibbleArray {
+
+    /**
+     * The size of this array in nibbles.
+     */
+    private final int size;
+
+    /**
+     * The packed data backing this array, or null if every nibble is equal
+     * to {@link #uniform}.
+     */
+    private byte[] data;
+
+    /**
+     * The packed data backing a direct array, or null if every nibble is
+     * equal to {@link #uniform}.
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * Whether the data is kept in a direct buffer rather than an array.
+     */
+    private final boolean direct;
+
+    /**
+     * The value of every nibble while no data is allocated.
+     */
+    private byte uniform;
+
+    /**
+     * Construct a new NibbleArray with the given size in nibbles.
+     * @param size The number of nibbles in the array.
+     * @throws IllegalArgumentException If size is not positive and even.
+     */
+    public NibbleArray(int size) {
+        this(size, (byte) 0);
+    }
+
+    /**
+     * Construct a new NibbleArray with the given size in nibbles and a default
+     * value.
+     * @param size The number of nibbles in the array.
+     * @param value The default value to fill every nibble with.
+     * @throws IllegalArgumentException If size is not positive and even.
+     */
+    public NibbleArray(int size, byte value) {
+        this(size, value, false);
+    }
+
+    /**
+     * Construct a new NibbleArray with the given size in nibbles and a default
+     * value, optionally keeping its data outside the Java heap.
+     * @param size The number of nibbles in the array.
+     * @param value The default value to fill every nibble with.
+     * @param direct Whether to use a direct buffer for the data.
+     * @throws IllegalArgumentException If size is not positive and even.
+     */
+    public NibbleArray(int size, byte value, boolean direct) {
+        if (size <= 0 || size % 2 != 0) {
+            throw new IllegalArgumentException("size must be positive even number, not " + size);
+        }
+        this.size = size;
+        this.direct = direct;
+        fill(value);
+    }
+
+    /**
+     * Construct a new NibbleArray using the given underlying bytes. No copy
+     * is created, and if every nibble holds the same value the array is
+     * dropped entirely.
+     * @param data The raw data to use.
+     */
+    public NibbleArray(byte[] data) {
+        size = 2 * data.length;
+        direct = false;
+        byte first = data.length == 0 ? 0 : data[0];
+        if ((first & 0xf) == ((first >> 4) & 0xf) && isFilledWith(data, first)) {
+            uniform = (byte) (first & 0xf);
+        } else {
+            this.data = data;
+        }
+    }
+
+    /**
+     * Get the size in nibbles.
+     * @return The size in nibbles.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the size in bytes, one-half the size in nibbles.
+     * @return The size in bytes.
+     */
+    public int byteSize() {
+        return size / 2;
+    }
+
+    /**
+     * Check whether this array keeps its data outside the Java heap.
+     * @return Whether a direct buffer is used for the data.
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Get this array with its data kept on or off the Java heap. If the
+     * storage already matches this array is returned, otherwise a copy.
+     * @param direct Whether to use a direct buffer for the data.
+     * @return A NibbleArray with the requested storage.
+     */
+    public NibbleArray withStorage(boolean direct) {
+        if (direct == this.direct) {
+            return this;
+        }
+        NibbleArray result = new NibbleArray(size, uniform, direct);
+        if (!isUniform()) {
+            result.setRawData(getRawData());
+        }
+        return result;
+    }
+
+    /**
+     * Get the nibble at the given index.
+     * @param index The nibble index.
+     * @return The value of the nibble at that index.
+     */
+    public byte get(int index) {
+        byte val;
+        if (data != null) {
+            val = data[index / 2];
+        } else if (buffer != null) {
+            val = buffer.get(index / 2);
+        } else {
+            return uniform;
+        }
+        if (index % 2 == 0) {
+            return (byte) (val & 0x0f);
+        } else {
+            return (byte) ((val & 0xf0) >> 4);
+        }
+    }
+
+    /**
+     * Set the nibble at the given index to the given value.
+     * @param index The nibble index.
+     * @param value The new value to store.
+     */
+    public void set(int index, byte value) {
+        value &= 0xf;
+        if (isUniform()) {
+            if (value == uniform) {
+                return;
+            }
+            allocate();
+        }
+        int half = index / 2;
+        byte previous = data != null ? data[half] : buffer.get(half);
+        byte updated;
+        if (index % 2 == 0) {
+            updated = (byte) ((previous & 0xf0) | value);
+        } else {
+            updated = (byte) ((previous & 0x0f) | (value << 4));
+        }
+        if (data != null) {
+            data[half] = updated;
+        } else {
+            buffer.put(half, updated);
+        }
+    }
+
+    /**
+     * Fill the nibble array with the specified value. This releases any
+     * previously allocated backing array.
+     * @param value The value nibble to fill with.
+     */
+    public void fill(byte value) {
+        data = null;
+        buffer = null;
+        uniform = (byte) (value & 0xf);
+    }
+
+    /**
+     * Check whether every nibble in this array is currently stored as a
+     * single shared value.
+     * @return Whether no backing array is allocated.
+     */
+    public boolean isUniform() {
+        return data == null && buffer == null;
+    }
+
+    /**
+     * Get the raw bytes of this nibble array. If a backing array is allocated
+     * it is returned directly and should not be modified; otherwise a new
+     * array is created.
+     * @return The raw bytes.
+     */
+    public byte[] getRawData() {
+        if (data != null) {
+            return data;
+        }
+        byte[] result = new byte[size / 2];
+        copyTo(result, 0);
+        return result;
+    }
+
+    /**
+     * Copy the raw bytes of this nibble array into the given array.
+     * @param dest The array to copy into.
+     * @param offset The position in dest to start writing at.
+     */
+    public void copyTo(byte[] dest, int offset) {
+        if (data != null) {
+            System.arraycopy(data, 0, dest, offset, data.length);
+        } else if (buffer != null) {
+            ByteBuffer source = buffer.duplicate();
+            source.clear();
+            source.get(dest, offset, size / 2);
+        } else {
+            Arrays.fill(dest, offset, offset + size / 2, pack(uniform));
+        }
+    }
+
+    /**
+     * Copies into the raw bytes of this nibble array from the given source.
+     * @param source The array to copy from.
+     * @throws IllegalArgumentException If source is not the correct length.
+     */
+    public void setRawData(byte[] source) {
+        if (source.length != size / 2) {
+            throw new IllegalArgumentException("expected byte array of length " + (size / 2) + ", not " + source.length);
+        }
+        if (isUniform()) {
+            allocate();
+        }
+        if (data != null) {
+            System.arraycopy(source, 0, data, 0, source.length);
+        } else {
+            ByteBuffer dest = buffer.duplicate();
+            dest.clear();
+            dest.put(source);
+        }
+    }
+
+    /**
+     * Take a snapshot of this NibbleArray which will not reflect changes.
+     * @return The snapshot NibbleArray.
+     */
+    public NibbleArray snapshot() {
+        if (data != null) {
+            return new NibbleArray(data.clone());
+        }
+        NibbleArray result = new NibbleArray(size, uniform, direct);
+        if (buffer != null) {
+            result.setRawData(getRawData());
+        }
+        return result;
+    }
+
+    /**
+     * Allocate the backing storage, filled with the uniform value.
+     */
+    private void allocate() {
+        if (direct) {
+            // direct buffers start out zeroed
+            buffer = ByteBuffer.allocateDirect(size / 2);
+            byte packed = pack(uniform);
+            for (int i = 0; packed != 0 && i < size / 2; ++i) {
+                buffer.put(i, packed);
+            }
+        } else {
+            data = new byte[size / 2];
+            Arrays.fill(data, pack(uniform));
+        }
+    }
+
+    private static byte pack(byte value) {
+        return (byte) ((value << 4) | value);
+    }
+
+    private static boolean isFilledWith(byte[] data, byte value) {
+        for (byte b : data) {
+            if (b != value) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
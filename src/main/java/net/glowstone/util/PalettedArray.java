@@ -0,0 +1,463 @@
+package net.glowstone.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An array of unsigned byte values, such as block types, which is stored
+ * according to how many distinct values it holds:
+ * <ul>
+ * <li>A single value, with no per-entry storage at all.</li>
+ * <li>A palette of up to 16 values, with 1, 2 or 4 bit indices into it
+ * packed into longs.</li>
+ * <li>A flat byte array, once there is too much variety for a palette.</li>
+ * </ul>
+ * Writing a value which is not in the palette rebuilds the palette from the
+ * current contents, growing the index size or switching to the flat layout
+ * only when it is really needed.
+ * <p>
+ * A direct PalettedArray keeps the flat layout in a direct {@link ByteBuffer}
+ * outside the Java heap. The palette layouts are small and stay on the heap.
+ */
+public final class PalettedArray {
+
+    /**
+     * The largest index size in bits before the flat layout is used.
+     */
+    private static final int MAX_BITS = 4;
+
+    /**
+     * The size of this array in entries.
+     */
+    private final int size;
+
+    /**
+     * The current storage. It is replaced as a whole whenever the layout
+     * changes, so a reader which loads it once sees a palette, index size
+     * and indices which belong together even while another thread writes.
+     */
+    private volatile Storage storage;
+
+    /**
+     * Whether the flat layout is kept in a direct buffer.
+     */
+    private final boolean direct;
+
+    /**
+     * The number of entries whose value is not zero.
+     */
+    private int nonZero;
+
+    /**
+     * Construct a new PalettedArray with every entry set to zero.
+     * @param size The number of entries in the array.
+     */
+    public PalettedArray(int size) {
+        this(size, 0);
+    }
+
+    /**
+     * Construct a new PalettedArray with every entry set to the given value.
+     * @param size The number of entries in the array.
+     * @param value The value to fill with.
+     */
+    public PalettedArray(int size, int value) {
+        this(size, value, false);
+    }
+
+    /**
+     * Construct a new PalettedArray with every entry set to the given value,
+     * optionally keeping the flat layout outside the Java heap.
+     * @param size The number of entries in the array.
+     * @param value The value to fill with.
+     * @param direct Whether to use a direct buffer for the flat layout.
+     */
+    public PalettedArray(int size, int value, boolean direct) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive, not " + size);
+        }
+        this.size = size;
+        this.direct = direct;
+        fill(value);
+    }
+
+    /**
+     * Construct a new PalettedArray holding the given values. If they need
+     * the flat layout the array is used directly rather than copied.
+     * @param values The values to use.
+     */
+    public PalettedArray(byte[] values) {
+        this(values, false);
+    }
+
+    /**
+     * Construct a new PalettedArray holding the given values, optionally
+     * keeping the flat layout outside the Java heap. On the heap the array
+     * is used directly rather than copied.
+     * @param values The values to use.
+     * @param direct Whether to use a direct buffer for the flat layout.
+     */
+    public PalettedArray(byte[] values, boolean direct) {
+        size = values.length;
+        this.direct = direct;
+        load(values);
+    }
+
+    private PalettedArray(PalettedArray other) {
+        size = other.size;
+        direct = other.direct;
+        Storage s = other.storage;
+        ByteBuffer flatBuffer = null;
+        if (s.flatBuffer != null) {
+            flatBuffer = ByteBuffer.allocateDirect(size);
+            ByteBuffer source = s.flatBuffer.duplicate();
+            source.clear();
+            flatBuffer.put(source);
+        }
+        storage = new Storage(
+                s.palette == null ? null : s.palette.clone(),
+                s.paletteSize,
+                s.bits,
+                s.indices == null ? null : s.indices.clone(),
+                s.flat == null ? null : s.flat.clone(),
+                flatBuffer);
+        nonZero = other.nonZero;
+    }
+
+    /**
+     * Get the size in entries.
+     * @return The size in entries.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of entries which are not zero.
+     * @return The number of non-zero entries.
+     */
+    public int nonZeroCount() {
+        return nonZero;
+    }
+
+    /**
+     * Check whether a flat byte array is currently used for storage.
+     * @return Whether the flat layout is in use.
+     */
+    public boolean isFlat() {
+        Storage s = storage;
+        return s.flat != null || s.flatBuffer != null;
+    }
+
+    /**
+     * Check whether this array keeps its flat layout outside the Java heap.
+     * @return Whether a direct buffer is used for the flat layout.
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Get this array with its flat layout kept on or off the Java heap. If
+     * the storage already matches this array is returned, otherwise a copy.
+     * @param direct Whether to use a direct buffer for the flat layout.
+     * @return A PalettedArray with the requested storage.
+     */
+    public PalettedArray withStorage(boolean direct) {
+        if (direct == this.direct) {
+            return this;
+        }
+        byte[] values = new byte[size];
+        copyTo(values, 0);
+        return new PalettedArray(values, direct);
+    }
+
+    /**
+     * Check whether any entry holds a value which is flagged in the given
+     * table. While a palette is in use only the palette is checked, which
+     * may still hold values that have since been overwritten, so a true
+     * result is only a hint.
+     * @param table A table of flags indexed by value, of length 256.
+     * @return Whether any flagged value is present.
+     */
+    public boolean containsAny(boolean[] table) {
+        Storage s = storage;
+        if (s.flat != null) {
+            for (byte b : s.flat) {
+                if (table[b & 0xff]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (s.flatBuffer != null) {
+            for (int i = 0; i < size; ++i) {
+                if (table[s.flatBuffer.get(i) & 0xff]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        for (int i = 0; i < s.paletteSize; ++i) {
+            if (table[s.palette[i]]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the value at the given index.
+     * @param index The entry index.
+     * @return The value at that index, from 0 to 255.
+     */
+    public int get(int index) {
+        return storage.get(index);
+    }
+
+    /**
+     * Set the value at the given index.
+     * @param index The entry index.
+     * @param value The new value, from 0 to 255.
+     */
+    public void set(int index, int value) {
+        if (value < 0 || value > 0xff) {
+            throw new IllegalArgumentException("Value out of range: " + value);
+        }
+        Storage s = storage;
+        int previous = s.get(index);
+        if (previous == value) {
+            return;
+        }
+
+        if (s.flat != null) {
+            s.flat[index] = (byte) value;
+        } else if (s.flatBuffer != null) {
+            s.flatBuffer.put(index, (byte) value);
+        } else {
+            int entry = s.paletteIndexOf(value);
+            if (entry < 0) {
+                if (s.paletteSize == s.palette.length) {
+                    // palette is full, rebuild from the actual contents
+                    byte[] values = toByteArray();
+                    values[index] = (byte) value;
+                    load(values);
+                    return;
+                }
+                entry = s.paletteSize;
+                s.palette[entry] = value;
+                s.paletteSize++;
+            }
+            s.writeIndex(index, entry);
+        }
+
+        if (previous == 0) {
+            nonZero++;
+        } else if (value == 0) {
+            nonZero--;
+        }
+    }
+
+    /**
+     * Fill the array with the given value, releasing any storage.
+     * @param value The value to fill with, from 0 to 255.
+     */
+    public void fill(int value) {
+        if (value < 0 || value > 0xff) {
+            throw new IllegalArgumentException("Value out of range: " + value);
+        }
+        nonZero = value == 0 ? 0 : size;
+        storage = new Storage(new int[] {value}, 1, 0, null, null, null);
+    }
+
+    /**
+     * Get the contents of this array as flat bytes. In the flat layout on
+     * the heap the backing array is returned directly and should not be
+     * modified; otherwise a new array is created.
+     * @return The values as bytes.
+     */
+    public byte[] toByteArray() {
+        Storage s = storage;
+        if (s.flat != null) {
+            return s.flat;
+        }
+        byte[] result = new byte[size];
+        s.copyTo(result, 0, size);
+        return result;
+    }
+
+    /**
+     * Copy the contents of this array as flat bytes into the given array.
+     * @param dest The array to copy into.
+     * @param offset The position in dest to start writing at.
+     */
+    public void copyTo(byte[] dest, int offset) {
+        storage.copyTo(dest, offset, size);
+    }
+
+    /**
+     * Take a snapshot of this PalettedArray which will not reflect changes.
+     * @return The snapshot PalettedArray.
+     */
+    public PalettedArray snapshot() {
+        return new PalettedArray(this);
+    }
+
+    // ======== Internals ========
+
+    /**
+     * Rebuild the storage for the given values, choosing the smallest
+     * layout, and publish it in one write.
+     */
+    private void load(byte[] values) {
+        boolean[] seen = new boolean[256];
+        int distinct = 0, count = 0;
+        for (byte b : values) {
+            int v = b & 0xff;
+            if (v != 0) {
+                ++count;
+            }
+            if (!seen[v]) {
+                seen[v] = true;
+                ++distinct;
+            }
+        }
+
+        if (distinct > (1 << MAX_BITS)) {
+            if (direct) {
+                ByteBuffer flatBuffer = ByteBuffer.allocateDirect(size);
+                flatBuffer.put(values);
+                flatBuffer.clear();
+                storage = new Storage(null, 0, 8, null, null, flatBuffer);
+            } else {
+                storage = new Storage(null, 0, 8, null, values, null);
+            }
+            nonZero = count;
+            return;
+        }
+
+        int newBits = 0;
+        while ((1 << newBits) < distinct) {
+            newBits = newBits == 0 ? 1 : newBits * 2;
+        }
+
+        int[] lookup = new int[256];
+        int[] palette = new int[1 << newBits];
+        int paletteSize = 0;
+        for (int v = 0; v < seen.length; ++v) {
+            if (seen[v]) {
+                lookup[v] = paletteSize;
+                palette[paletteSize++] = v;
+            }
+        }
+
+        Storage s = new Storage(palette, paletteSize, newBits, newBits == 0 ? null : new long[(size * newBits + 63) / 64], null, null);
+        if (newBits != 0) {
+            for (int i = 0; i < size; ++i) {
+                s.writeIndex(i, lookup[values[i] & 0xff]);
+            }
+        }
+        nonZero = count;
+        storage = s;
+    }
+
+    /**
+     * One layout of the array. Which arrays are used and the index size
+     * never change once it is built; the values in them are written in place.
+     */
+    private static final class Storage {
+        /**
+         * The palette values, or null in the flat layout. Its length is the
+         * number of values which can be indexed with {@link #bits}.
+         */
+        final int[] palette;
+
+        /**
+         * The number of palette slots in use.
+         */
+        int paletteSize;
+
+        /**
+         * The number of bits per packed index, or 0 for a single value.
+         */
+        final int bits;
+
+        /**
+         * The packed palette indices, or null if there is only a single
+         * value or the flat layout is in use.
+         */
+        final long[] indices;
+
+        /**
+         * The flat values, or null if a palette or direct storage is in use.
+         */
+        final byte[] flat;
+
+        /**
+         * The flat values of a direct array, or null if a palette is in use.
+         */
+        final ByteBuffer flatBuffer;
+
+        Storage(int[] palette, int paletteSize, int bits, long[] indices, byte[] flat, ByteBuffer flatBuffer) {
+            this.palette = palette;
+            this.paletteSize = paletteSize;
+            this.bits = bits;
+            this.indices = indices;
+            this.flat = flat;
+            this.flatBuffer = flatBuffer;
+        }
+
+        int get(int index) {
+            if (flat != null) {
+                return flat[index] & 0xff;
+            }
+            if (flatBuffer != null) {
+                return flatBuffer.get(index) & 0xff;
+            }
+            if (bits == 0) {
+                return palette[0];
+            }
+            return palette[readIndex(index)];
+        }
+
+        void copyTo(byte[] dest, int offset, int size) {
+            if (flat != null) {
+                System.arraycopy(flat, 0, dest, offset, size);
+            } else if (flatBuffer != null) {
+                ByteBuffer source = flatBuffer.duplicate();
+                source.clear();
+                source.get(dest, offset, size);
+            } else if (bits == 0) {
+                Arrays.fill(dest, offset, offset + size, (byte) palette[0]);
+            } else {
+                for (int i = 0; i < size; ++i) {
+                    dest[offset + i] = (byte) palette[readIndex(i)];
+                }
+            }
+        }
+
+        int paletteIndexOf(int value) {
+            for (int i = 0; i < paletteSize; ++i) {
+                if (palette[i] == value) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int readIndex(int index) {
+            int perLong = 64 / bits;
+            long word = indices[index / perLong];
+            return (int) (word >>> ((index % perLong) * bits)) & ((1 << bits) - 1);
+        }
+
+        void writeIndex(int index, int entry) {
+            int perLong = 64 / bits;
+            int shift = (index % perLong) * bits;
+            long mask = ((1L << bits) - 1) << shift;
+            int word = index / perLong;
+            indices[word] = (indices[word] & ~mask) | ((long) entry << shift);
+        }
+    }
+
+}
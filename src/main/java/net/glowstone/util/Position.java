@@ -66,6 +66,15 @@ public final class Position {
         return (int) (((loc.getPitch() % 360) / 360) * 256);
     }
 
+    /**
+     * Packs integer block coordinates into a single long. X and Z take 26
+     * bits each and Y takes 12 bits, all signed.
+     * @return The packed coordinates.
+     */
+    public static long packBlock(int x, int y, int z) {
+        return ((long) (x & 0x3ffffff) << 38) | ((long) (z & 0x3ffffff) << 12) | (y & 0xfff);
+    }
+
     /**
      * Gets whether there has been a position change between the two Locations.
      * @return A boolean.
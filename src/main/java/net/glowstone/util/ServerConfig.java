@@ -197,6 +197,12 @@ public class ServerConfig {
         EXACT_LOGIN_LOCATION("advanced.exact-login-location", false, Migrate.BUKKIT, "settings.use-exact-login-location"),
         PLUGIN_PROFILING("advanced.plugin-profiling", false, Migrate.BUKKIT, "settings.plugin-profiling"),
         WARNING_STATE("advanced.deprecated-verbose", "false", Migrate.BUKKIT, "settings.deprecated-verbose"),
+        OFF_HEAP_CHUNKS("advanced.off-heap-chunks", false),
+        CHUNK_IO_THREADS("advanced.chunk-io-threads", 2),
+        GENERATION_THREADS("advanced.generation-threads", 0),
+        REGION_MMAP("advanced.region-mmap", false),
+        REGION_FILE_LIMIT("advanced.region-file-limit", 256),
+        CHUNK_JOURNAL("advanced.chunk-journal", true),
 
         // query rcon etc
         QUERY_ENABLED("extras.query-enabled", false, Migrate.PROPS, "enable-query"),
@@ -216,6 +222,11 @@ public class ServerConfig {
         GENERATOR_SETTINGS("world.gen-settings", "", Migrate.PROPS, "generator-settings"),
         ALLOW_NETHER("world.allow-nether", true, Migrate.PROPS, "allow-nether"),
         ALLOW_END("world.allow-end", true, Migrate.BUKKIT, "settings.allow-end"),
+        CHUNK_LIMIT("world.chunk-limit", 4096),
+        CHUNK_UNLOAD_DELAY("world.chunk-unload-delay", 600),
+        CHUNK_UNLOAD_TIME("world.chunk-unload-time", 5),
+        CHUNK_SAVE_TIME("world.chunk-save-time", 5),
+        PREGEN_TIME("world.pregen-time", 20),
 
         // game props
         GAMEMODE("game.gamemode", "SURVIVAL", Migrate.PROPS, "gamemode"),
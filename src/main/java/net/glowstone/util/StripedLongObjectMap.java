@@ -0,0 +1,148 @@
+package net.glowstone.util;
+
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A thread-safe map from primitive long keys to objects. The key space is
+ * split between a fixed number of {@link TLongObjectHashMap} stripes, each
+ * guarded by its own monitor, so lookups neither box their keys nor allocate
+ * and threads working on different keys rarely contend.
+ */
+public final class StripedLongObjectMap<V> {
+
+    /**
+     * The default number of stripes.
+     */
+    private static final int DEFAULT_STRIPES = 32;
+
+    /**
+     * The maps making up each stripe.
+     */
+    private final TLongObjectMap<V>[] stripes;
+
+    /**
+     * A mask to select a stripe from a hash.
+     */
+    private final int mask;
+
+    public StripedLongObjectMap() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * Creates a new map with the given number of stripes.
+     * @param stripeCount The number of stripes, which must be a power of two.
+     */
+    @SuppressWarnings("unchecked")
+    public StripedLongObjectMap(int stripeCount) {
+        if (stripeCount <= 0 || (stripeCount & (stripeCount - 1)) != 0) {
+            throw new IllegalArgumentException("stripe count must be a positive power of two, not " + stripeCount);
+        }
+        stripes = new TLongObjectMap[stripeCount];
+        for (int i = 0; i < stripeCount; ++i) {
+            stripes[i] = new TLongObjectHashMap<V>();
+        }
+        mask = stripeCount - 1;
+    }
+
+    private TLongObjectMap<V> stripe(long key) {
+        // packed chunk keys differ mostly in their low bits, and folding the
+        // halves together would send every x == z key to the same stripe,
+        // so mix all the bits first with the murmur3 finalizer
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return stripes[(int) key & mask];
+    }
+
+    /**
+     * Get the value for the given key.
+     * @param key The key.
+     * @return The value, or null if there is none.
+     */
+    public V get(long key) {
+        TLongObjectMap<V> map = stripe(key);
+        synchronized (map) {
+            return map.get(key);
+        }
+    }
+
+    /**
+     * Store a value for the given key if no value is already present.
+     * @param key The key.
+     * @param value The value to store.
+     * @return The previous value, or null if the given value was stored.
+     */
+    public V putIfAbsent(long key, V value) {
+        TLongObjectMap<V> map = stripe(key);
+        synchronized (map) {
+            return map.putIfAbsent(key, value);
+        }
+    }
+
+    /**
+     * Remove the value for the given key.
+     * @param key The key.
+     * @return The previous value, or null if there was none.
+     */
+    public V remove(long key) {
+        TLongObjectMap<V> map = stripe(key);
+        synchronized (map) {
+            return map.remove(key);
+        }
+    }
+
+    /**
+     * Remove the value for the given key only if it is currently mapped to
+     * the given value.
+     * @param key The key.
+     * @param value The expected value.
+     * @return Whether the value was removed.
+     */
+    public boolean remove(long key, V value) {
+        TLongObjectMap<V> map = stripe(key);
+        synchronized (map) {
+            if (map.get(key) != value) {
+                return false;
+            }
+            map.remove(key);
+            return true;
+        }
+    }
+
+    /**
+     * Get the total number of entries. This is not atomic across stripes.
+     * @return The number of entries.
+     */
+    public int size() {
+        int size = 0;
+        for (TLongObjectMap<V> map : stripes) {
+            synchronized (map) {
+                size += map.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get a snapshot of all values in the map. This is not atomic across
+     * stripes.
+     * @return A new list of the values.
+     */
+    public List<V> values() {
+        List<V> result = new ArrayList<V>();
+        for (TLongObjectMap<V> map : stripes) {
+            synchronized (map) {
+                result.addAll(map.valueCollection());
+            }
+        }
+        return result;
+    }
+
+}
@@ -113,7 +113,7 @@ public class TargetBlock {
         boolean searchForLastBlock = true;
         Location lastBlock = null;
         while (getNextBlock()) {
-            if (world.getBlockTypeIdAt(getCurrentBlock()) == 0) {
+            if (getCurrentTypeId() == 0) {
                 if(searchForLastBlock) {
                     lastBlock = getCurrentBlock();
                     if (lastBlock.getBlockY() <= 0 || lastBlock.getBlockY() >= world.getMaxHeight() - 1) {
@@ -136,7 +136,7 @@ public class TargetBlock {
      */
     public Location getTargetBlock() {
         while (getNextBlock()
-                && (world.getBlockTypeIdAt(getCurrentBlock()) == 0));
+                && (getCurrentTypeId() == 0));
         return getCurrentBlock();
     }
 
@@ -148,7 +148,7 @@ public class TargetBlock {
      */
     public Location getSolidTargetBlock() {
         while (getNextBlock()
-                && transparentBlocks.contains(world.getBlockTypeIdAt(getCurrentBlock())));
+                && transparentBlocks.contains(getCurrentTypeId()));
         return getCurrentBlock();
     }
 
@@ -189,6 +189,16 @@ public class TargetBlock {
         }
     }
 
+    /**
+     * Returns the type of the current block along the line of vision, without
+     * creating a Location for it
+     * 
+     * @return block type id
+     */
+    private int getCurrentTypeId() {
+        return world.getBlockTypeIdAt(targetPos.getBlockX(), targetPos.getBlockY(), targetPos.getBlockZ());
+    }
+
     /**
      * Returns the previous block in the aimed path
      * 
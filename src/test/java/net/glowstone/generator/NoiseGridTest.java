@@ -0,0 +1,41 @@
+package net.glowstone.generator;
+
+import org.bukkit.util.noise.OctaveGenerator;
+import org.bukkit.util.noise.SimplexOctaveGenerator;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class NoiseGridTest {
+
+    @Test
+    public void testFill2DMatchesOctaveNoise() {
+        OctaveGenerator gen = new SimplexOctaveGenerator(new Random(1234), 8);
+        gen.setScale(1 / 64.0);
+        check(gen, -48, 32, 0.7, 0.6, true);
+        check(gen, 1000, -1000, 0.5, 0.5, false);
+    }
+
+    @Test
+    public void testFill2DUsesXAndYScale() {
+        OctaveGenerator gen = new SimplexOctaveGenerator(new Random(99), 4);
+        gen.setXScale(1 / 16.0);
+        gen.setYScale(1 / 40.0);
+        gen.setZScale(3.0);
+        check(gen, 5, 7, 2, 0.5, true);
+    }
+
+    private static void check(OctaveGenerator gen, int x, int z, double frequency, double amplitude, boolean normalized) {
+        int sizeX = 16, sizeZ = 16;
+        double[] grid = new double[sizeX * sizeZ];
+        NoiseGrid.fill2D(gen, grid, x, z, sizeX, sizeZ, frequency, amplitude, normalized);
+        for (int ix = 0; ix < sizeX; ++ix) {
+            for (int iz = 0; iz < sizeZ; ++iz) {
+                double expected = gen.noise(x + ix, z + iz, frequency, amplitude, normalized);
+                assertEquals("Noise at " + (x + ix) + "," + (z + iz), expected, grid[ix * sizeZ + iz], 1e-12);
+            }
+        }
+    }
+}
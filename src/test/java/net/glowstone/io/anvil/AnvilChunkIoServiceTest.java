@@ -0,0 +1,109 @@
+package net.glowstone.io.anvil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.Assert.*;
+
+public class AnvilChunkIoServiceTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("world", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void testFailedReplayIsMovedAside() throws IOException {
+        byte[] stale = payload(1, 1000);
+        ChunkJournal journal = new ChunkJournal(new File(dir, "chunks.journal"));
+        try {
+            byte[] data = deflate(stale);
+            journal.append(0, 0, data, data.length);
+        } finally {
+            journal.close();
+        }
+
+        // a file where the region directory should be makes the replay fail
+        File regionDir = new File(dir, "region");
+        assertTrue(regionDir.createNewFile());
+        new AnvilChunkIoService(dir).unload();
+
+        File corrupt = new File(dir, "chunks.journal.corrupt");
+        assertTrue(corrupt.exists());
+        assertTrue(corrupt.length() > 0);
+        assertEquals(0, new File(dir, "chunks.journal").length());
+
+        // a newer save reaches the region after the failed replay
+        assertTrue(regionDir.delete());
+        byte[] newer = payload(2, 1000);
+        RegionFileCache cache = new RegionFileCache(".mca");
+        RegionFile region = cache.acquire(dir, 0, 0);
+        try {
+            byte[] data = deflate(newer);
+            region.write(0, 0, data, data.length);
+        } finally {
+            cache.release(region);
+        }
+        cache.clear();
+
+        // opening the world again must not roll the chunk back
+        new AnvilChunkIoService(dir).unload();
+        assertArrayEquals(newer, read(cache, 0, 0));
+        cache.clear();
+        assertTrue(corrupt.exists());
+    }
+
+    private byte[] read(RegionFileCache cache, int x, int z) throws IOException {
+        DataInputStream in = cache.getChunkDataInputStream(dir, x, z);
+        assertNotNull(in);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int read;
+        while ((read = in.read(buf)) > 0) {
+            bytes.write(buf, 0, read);
+        }
+        in.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] raw) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DeflaterOutputStream out = new DeflaterOutputStream(bytes);
+        out.write(raw);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] payload(long seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
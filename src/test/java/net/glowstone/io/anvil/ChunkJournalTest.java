@@ -0,0 +1,107 @@
+package net.glowstone.io.anvil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ChunkJournalTest {
+
+    private File file;
+    private final List<byte[]> records = new ArrayList<byte[]>();
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("chunks", ".journal");
+        ChunkJournal journal = new ChunkJournal(file);
+        try {
+            for (int i = 0; i < 3; ++i) {
+                byte[] data = new byte[1000 + i];
+                new Random(i).nextBytes(data);
+                journal.append(i, -i, data, data.length);
+                records.add(data);
+            }
+        } finally {
+            journal.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testReplayAll() throws IOException {
+        assertEquals(3, replay(3));
+    }
+
+    @Test
+    public void testTornTail() throws IOException {
+        // lose the end of the last record, as if the crash came mid-write
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 10);
+        } finally {
+            raf.close();
+        }
+        assertEquals(2, replay(2));
+    }
+
+    @Test
+    public void testCorruptRecordStopsReplay() throws IOException {
+        // flip a byte in the payload of the second record
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long position = 16 + records.get(0).length + 16 + 5;
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+        assertEquals(1, replay(1));
+    }
+
+    @Test
+    public void testTruncate() throws IOException {
+        ChunkJournal journal = new ChunkJournal(file);
+        try {
+            journal.append(7, 7, records.get(0), records.get(0).length);
+            assertTrue(journal.size() > 0);
+            journal.truncate();
+            assertEquals(0, journal.size());
+        } finally {
+            journal.close();
+        }
+        assertEquals(0, file.length());
+    }
+
+    /**
+     * Replay the journal, checking that the records found are the first
+     * ones written, and return how many there were.
+     */
+    private int replay(final int expected) throws IOException {
+        final List<byte[]> found = new ArrayList<byte[]>();
+        int count = ChunkJournal.replay(file, new ChunkJournal.Replay() {
+            public void chunk(int x, int z, byte[] data) {
+                int i = found.size();
+                assertEquals(i, x);
+                assertEquals(-i, z);
+                assertArrayEquals(records.get(i), data);
+                found.add(data);
+            }
+        });
+        assertEquals(expected, found.size());
+        return count;
+    }
+}
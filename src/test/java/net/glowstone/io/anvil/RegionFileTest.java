@@ -0,0 +1,128 @@
+package net.glowstone.io.anvil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.Assert.*;
+
+public class RegionFileTest {
+
+    private static final int SECTOR_BYTES = 4096;
+
+    private File file;
+    private RegionFile region;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("region", ".mca");
+        file.delete();
+        region = new RegionFile(file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        region.close();
+        file.delete();
+    }
+
+    @Test
+    public void testFreedSectorsAreReused() throws IOException {
+        byte[] a = payload(1, 10000), b = payload(2, 100), c = payload(3, 5000);
+        write(0, 0, a);
+        write(1, 0, b);
+        // header, three sectors for a and one for b
+        assertEquals(6 * SECTOR_BYTES, file.length());
+
+        // a shrinks into the start of its old run, and c fits in the rest
+        byte[] small = payload(4, 100);
+        write(0, 0, small);
+        write(2, 0, c);
+        assertEquals(6 * SECTOR_BYTES, file.length());
+
+        assertArrayEquals(small, read(0, 0));
+        assertArrayEquals(b, read(1, 0));
+        assertArrayEquals(c, read(2, 0));
+    }
+
+    @Test
+    public void testGrowsPastEnd() throws IOException {
+        write(0, 0, payload(1, 100));
+        write(1, 0, payload(2, 100));
+        assertEquals(4 * SECTOR_BYTES, file.length());
+
+        // the first chunk no longer fits where it was, so it moves to the end
+        byte[] big = payload(3, 9000);
+        write(0, 0, big);
+        assertEquals(7 * SECTOR_BYTES, file.length());
+        assertArrayEquals(big, read(0, 0));
+    }
+
+    @Test
+    public void testCompactionRoundTrip() throws IOException {
+        byte[][] chunks = new byte[8][];
+        for (int i = 0; i < chunks.length; ++i) {
+            chunks[i] = payload(i, 6000 + i * 100);
+            write(i, i, chunks[i]);
+        }
+        // leave gaps behind by shrinking every other chunk
+        for (int i = 0; i < chunks.length; i += 2) {
+            chunks[i] = payload(100 + i, 200);
+            write(i, i, chunks[i]);
+        }
+        long before = file.length();
+
+        long reclaimed = region.compact();
+        assertTrue(reclaimed > 0);
+        assertEquals(before - reclaimed, file.length());
+        for (int i = 0; i < chunks.length; ++i) {
+            assertArrayEquals(chunks[i], read(i, i));
+        }
+        assertFalse(region.hasChunk(1, 0));
+
+        // and the compacted file reads back the same once reopened
+        region.close();
+        region = new RegionFile(file);
+        for (int i = 0; i < chunks.length; ++i) {
+            assertArrayEquals(chunks[i], read(i, i));
+        }
+    }
+
+    private void write(int x, int z, byte[] raw) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DeflaterOutputStream out = new DeflaterOutputStream(bytes);
+        out.write(raw);
+        out.close();
+        byte[] data = bytes.toByteArray();
+        region.write(x, z, data, data.length);
+    }
+
+    private byte[] read(int x, int z) throws IOException {
+        DataInputStream in = region.getChunkDataInputStream(x, z);
+        assertNotNull(in);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int read;
+        while ((read = in.read(buf)) > 0) {
+            bytes.write(buf, 0, read);
+        }
+        in.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Random bytes, which deflate to a little more than their own size.
+     */
+    private static byte[] payload(long seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,149 @@
+package net.glowstone.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class NibbleArrayTest {
+
+    private static final int SIZE = 4096;
+
+    @Test
+    public void testPacking() {
+        NibbleArray array = new NibbleArray(SIZE);
+        array.set(0, (byte) 0x3);
+        array.set(1, (byte) 0xc);
+        array.set(SIZE - 1, (byte) 0x7);
+
+        // even nibbles go in the low half of each byte, as in Anvil
+        byte[] raw = array.getRawData();
+        assertEquals(SIZE / 2, raw.length);
+        assertEquals((byte) 0xc3, raw[0]);
+        assertEquals((byte) 0x70, raw[SIZE / 2 - 1]);
+        assertEquals(3, array.get(0));
+        assertEquals(12, array.get(1));
+        assertEquals(0, array.get(2));
+    }
+
+    @Test
+    public void testSetMasksValue() {
+        NibbleArray array = new NibbleArray(SIZE);
+        array.set(5, (byte) 0x1f);
+        assertEquals(0xf, array.get(5));
+        assertEquals(0, array.get(4));
+    }
+
+    @Test
+    public void testFillAndRawData() {
+        NibbleArray array = new NibbleArray(SIZE, (byte) 9);
+        assertEquals(SIZE, array.size());
+        assertEquals(SIZE / 2, array.byteSize());
+        for (int i = 0; i < SIZE; ++i) {
+            assertEquals(9, array.get(i));
+        }
+
+        byte[] raw = new byte[SIZE / 2];
+        for (int i = 0; i < raw.length; ++i) {
+            raw[i] = (byte) i;
+        }
+        array.setRawData(raw);
+        assertArrayEquals(raw, array.getRawData());
+        assertEquals(1, array.get(2));
+        assertEquals(0, array.get(3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOddSizeRejected() {
+        new NibbleArray(15);
+    }
+
+    @Test
+    public void testSnapshotIsIndependent() {
+        NibbleArray array = new NibbleArray(SIZE);
+        array.set(10, (byte) 3);
+        NibbleArray snapshot = array.snapshot();
+        array.set(10, (byte) 4);
+        assertEquals(3, snapshot.get(10));
+        assertEquals(4, array.get(10));
+    }
+
+    @Test
+    public void testUniformUntilWritten() {
+        NibbleArray array = new NibbleArray(SIZE, (byte) 15);
+        assertTrue(array.isUniform());
+
+        // writing the value already there keeps it uniform
+        array.set(7, (byte) 15);
+        assertTrue(array.isUniform());
+
+        array.set(7, (byte) 3);
+        assertFalse(array.isUniform());
+        assertEquals(3, array.get(7));
+        assertEquals(15, array.get(6));
+        assertEquals(15, array.get(8));
+
+        array.fill((byte) 2);
+        assertTrue(array.isUniform());
+        assertEquals(2, array.get(7));
+    }
+
+    @Test
+    public void testUniformRawData() {
+        byte[] raw = new byte[SIZE / 2];
+        Arrays.fill(raw, (byte) 0x44);
+        NibbleArray array = new NibbleArray(raw);
+        assertTrue(array.isUniform());
+        assertEquals(4, array.get(SIZE - 1));
+        assertArrayEquals(raw, array.getRawData());
+
+        raw[3] = 0x45;
+        array = new NibbleArray(raw);
+        assertFalse(array.isUniform());
+        assertEquals(5, array.get(6));
+        assertEquals(4, array.get(7));
+    }
+
+    @Test
+    public void testDirectMatchesHeap() {
+        NibbleArray heap = new NibbleArray(SIZE, (byte) 0, false);
+        NibbleArray direct = new NibbleArray(SIZE, (byte) 0, true);
+        Random random = new Random(42);
+        for (int n = 0; n < 10000; ++n) {
+            int index = random.nextInt(SIZE);
+            byte value = (byte) random.nextInt(16);
+            heap.set(index, value);
+            direct.set(index, value);
+        }
+        assertTrue(direct.isDirect());
+        assertFalse(direct.isUniform());
+        for (int i = 0; i < SIZE; ++i) {
+            assertEquals("Nibble " + i, heap.get(i), direct.get(i));
+        }
+        assertArrayEquals(heap.getRawData(), direct.getRawData());
+
+        NibbleArray moved = heap.withStorage(true);
+        assertTrue(moved.isDirect());
+        assertArrayEquals(heap.getRawData(), moved.getRawData());
+    }
+
+    @Test
+    public void testDirectUniformTransition() {
+        NibbleArray array = new NibbleArray(SIZE, (byte) 9, true);
+        assertTrue(array.isUniform());
+        array.set(0, (byte) 1);
+        assertFalse(array.isUniform());
+        assertEquals(1, array.get(0));
+        assertEquals(9, array.get(1));
+
+        NibbleArray snapshot = array.snapshot();
+        array.set(0, (byte) 2);
+        assertEquals(1, snapshot.get(0));
+
+        array.fill((byte) 0);
+        assertTrue(array.isUniform());
+        assertEquals(0, array.get(0));
+    }
+}
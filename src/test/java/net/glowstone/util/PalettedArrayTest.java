@@ -0,0 +1,116 @@
+package net.glowstone.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PalettedArrayTest {
+
+    private static final int SIZE = 4096;
+
+    @Test
+    public void testPaletteGrowth() {
+        PalettedArray array = new PalettedArray(SIZE);
+        byte[] expected = new byte[SIZE];
+
+        // each new value widens the palette, up to sixteen values
+        for (int value = 1; value < 16; ++value) {
+            for (int i = value; i < SIZE; i += 16) {
+                array.set(i, value);
+                expected[i] = (byte) value;
+            }
+            assertFalse("Flattened with " + (value + 1) + " values", array.isFlat());
+            assertContents(expected, array);
+        }
+
+        // a seventeenth needs the flat layout
+        array.set(0, 100);
+        expected[0] = 100;
+        assertTrue(array.isFlat());
+        assertContents(expected, array);
+    }
+
+    @Test
+    public void testRebuildDropsOverwrittenValues() {
+        PalettedArray array = new PalettedArray(SIZE);
+        for (int i = 0; i < 15; ++i) {
+            array.set(i, i + 1);
+        }
+        assertFalse(array.isFlat());
+        for (int i = 1; i < 15; ++i) {
+            array.set(i, 0);
+        }
+
+        // the palette is full of stale values, so it is rebuilt rather than flattened
+        array.set(1, 200);
+        assertFalse(array.isFlat());
+        assertEquals(1, array.get(0));
+        assertEquals(200, array.get(1));
+        assertEquals(0, array.get(2));
+        assertEquals(2, array.nonZeroCount());
+    }
+
+    @Test
+    public void testFillReleasesFlatLayout() {
+        byte[] values = new byte[SIZE];
+        for (int i = 0; i < SIZE; ++i) {
+            values[i] = (byte) i;
+        }
+        PalettedArray array = new PalettedArray(values);
+        assertTrue(array.isFlat());
+        assertEquals(SIZE - SIZE / 256, array.nonZeroCount());
+
+        array.fill(5);
+        assertFalse(array.isFlat());
+        assertEquals(SIZE, array.nonZeroCount());
+        for (int i = 0; i < SIZE; ++i) {
+            assertEquals(5, array.get(i));
+        }
+    }
+
+    @Test
+    public void testDirectMatchesHeap() {
+        PalettedArray heap = new PalettedArray(SIZE, 0, false);
+        PalettedArray direct = new PalettedArray(SIZE, 0, true);
+        Random random = new Random(42);
+        for (int n = 0; n < 20000; ++n) {
+            int index = random.nextInt(SIZE);
+            // few values at first, then enough to flatten
+            int value = random.nextInt(n < 10000 ? 4 : 256);
+            heap.set(index, value);
+            direct.set(index, value);
+        }
+        assertTrue(direct.isDirect());
+        assertTrue(direct.isFlat());
+        assertArrayEquals(heap.toByteArray(), direct.toByteArray());
+        assertEquals(heap.nonZeroCount(), direct.nonZeroCount());
+
+        PalettedArray copy = direct.withStorage(false);
+        assertFalse(copy.isDirect());
+        assertArrayEquals(heap.toByteArray(), copy.toByteArray());
+    }
+
+    @Test
+    public void testSnapshotIsIndependent() {
+        PalettedArray array = new PalettedArray(SIZE);
+        array.set(10, 3);
+        PalettedArray snapshot = array.snapshot();
+        array.set(10, 4);
+        assertEquals(3, snapshot.get(10));
+        assertEquals(4, array.get(10));
+    }
+
+    private static void assertContents(byte[] expected, PalettedArray array) {
+        int nonZero = 0;
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals("Entry " + i, expected[i] & 0xff, array.get(i));
+            if (expected[i] != 0) {
+                ++nonZero;
+            }
+        }
+        assertEquals(nonZero, array.nonZeroCount());
+        assertArrayEquals(expected, array.toByteArray());
+    }
+}
@@ -0,0 +1,94 @@
+package net.glowstone.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StripedLongObjectMapTest {
+
+    private static long key(int x, int z) {
+        return ((long) x << 32) | (z & 0xffffffffL);
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        StripedLongObjectMap<String> map = new StripedLongObjectMap<String>();
+        assertNull(map.putIfAbsent(key(1, -1), "a"));
+        assertEquals("a", map.putIfAbsent(key(1, -1), "b"));
+        assertEquals("a", map.get(key(1, -1)));
+        assertNull(map.get(key(-1, 1)));
+
+        assertFalse(map.remove(key(1, -1), "b"));
+        assertEquals("a", map.get(key(1, -1)));
+        assertTrue(map.remove(key(1, -1), "a"));
+        assertNull(map.get(key(1, -1)));
+
+        map.putIfAbsent(key(5, 5), "c");
+        assertEquals("c", map.remove(key(5, 5)));
+        assertNull(map.remove(key(5, 5)));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void testSizeAndValuesAcrossStripes() {
+        StripedLongObjectMap<Integer> map = new StripedLongObjectMap<Integer>(8);
+        int count = 0;
+        for (int x = -16; x < 16; ++x) {
+            for (int z = -16; z < 16; ++z) {
+                map.putIfAbsent(key(x, z), count++);
+            }
+        }
+        assertEquals(count, map.size());
+        List<Integer> values = map.values();
+        assertEquals(count, values.size());
+        boolean[] seen = new boolean[count];
+        for (int value : values) {
+            assertFalse(seen[value]);
+            seen[value] = true;
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStripeCountMustBePowerOfTwo() {
+        new StripedLongObjectMap<Object>(12);
+    }
+
+    @Test
+    public void testConcurrentPutIfAbsent() throws InterruptedException {
+        final StripedLongObjectMap<Integer> map = new StripedLongObjectMap<Integer>();
+        final int keys = 2000;
+        final AtomicInteger winners = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; ++t) {
+            final int id = t;
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < keys; ++i) {
+                        if (map.putIfAbsent(key(i, i), id) == null) {
+                            winners.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(keys, winners.get());
+        assertEquals(keys, map.size());
+    }
+}